@@ -0,0 +1,50 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Requests, responses and directories shared by the benchmarks.
+ */
+class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * @return A GET request for the path, with the headers a typical client sends.
+     */
+    static RequestToProxy request(String path) {
+        Header[] headers = {
+                new BasicHeader("Accept", "application/json"),
+                new BasicHeader("Accept-Encoding", "gzip,deflate"),
+                new BasicHeader("Connection", "keep-alive"),
+                new BasicHeader("User-Agent", "Apache-HttpClient/4.3.4 (java 1.5)")
+        };
+        return new RequestToProxy(headers, path, HttpMethod.GET, new ByteArrayEntity(new byte[0]), MatchHeaders.MATCH_NAME_AND_VALUE);
+    }
+
+    /**
+     * @return A 200 response to the request with a JSON-ish body of the given size.
+     */
+    static CachedResponse response(RequestToProxy request, int bodySize) {
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        return new CachedResponse(200, request, body, "application/json");
+    }
+
+    static String createCacheDirectory() throws IOException {
+        return Files.createTempDirectory("http-replaying-proxy-benchmark").toFile().getAbsolutePath();
+    }
+
+    static void deleteCacheDirectory(String directory) {
+        FileUtils.deleteQuietly(new File(directory));
+    }
+}
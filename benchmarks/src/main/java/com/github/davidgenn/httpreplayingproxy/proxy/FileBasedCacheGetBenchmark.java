@@ -0,0 +1,78 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up a request in a FileBasedCache holding a given number of recorded responses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileBasedCacheGetBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    private String directory;
+    private FileBasedCache cache;
+    private RequestToProxy[] recorded;
+    private RequestToProxy[] notRecorded;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = BenchmarkFixtures.createCacheDirectory();
+        cache = new FileBasedCache(directory, TimeUnit.DAYS.toSeconds(1));
+        recorded = new RequestToProxy[entries];
+        notRecorded = new RequestToProxy[entries];
+        for (int i = 0; i < entries; i++) {
+            recorded[i] = BenchmarkFixtures.request("/recorded/" + i);
+            notRecorded[i] = BenchmarkFixtures.request("/not-recorded/" + i);
+            cache.put(recorded[i].getRequestPath(), BenchmarkFixtures.response(recorded[i], 256));
+            // Build the key up front, as the handler already has by the time it looks the request up.
+            notRecorded[i].getMatchKey();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cache.close();
+        BenchmarkFixtures.deleteCacheDirectory(directory);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int entries) {
+            next = next + 1 == entries ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public CachedResponse hit(Cursor cursor) {
+        return cache.get(recorded[cursor.next(entries)]);
+    }
+
+    @Benchmark
+    public CachedResponse miss(Cursor cursor) {
+        return cache.get(notRecorded[cursor.next(entries)]);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures recording a response: serialising it and writing it to the fixture store.
+ * <p>Every iteration starts with an empty cache directory so that the store doesn't grow without bound.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileBasedCachePutBenchmark {
+
+    @Param({"JSON_FILES", "MAPPED_SEGMENT"})
+    public FixtureStorage storage;
+
+    @Param({"1024", "65536"})
+    public int bodySize;
+
+    private String directory;
+    private FileBasedCache cache;
+    private CachedResponse response;
+    private int recorded;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        directory = BenchmarkFixtures.createCacheDirectory();
+        HttpReplayingProxyConfiguration configuration = new HttpReplayingProxyConfiguration().withFixtureStorage(storage);
+        cache = new FileBasedCache(directory, TimeUnit.DAYS.toSeconds(1), configuration, new ProxyStatistics());
+        response = BenchmarkFixtures.response(BenchmarkFixtures.request("/recorded"), bodySize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        cache.close();
+        BenchmarkFixtures.deleteCacheDirectory(directory);
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        cache.put("/recorded/" + recorded++, response);
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of a cache hit end to end: an HTTP client calling a running HttpReplayingProxy that has already
+ * recorded the response from a stub 'real' service.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayHitBenchmark {
+
+    @Param({"1024", "1048576"})
+    public int bodySize;
+
+    private String directory;
+    private Server upstream;
+    private Server proxy;
+    private CloseableHttpClient httpClient;
+    private String url;
+
+    @Setup
+    public void setUp() throws Exception {
+        final byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        upstream = new Server(0);
+        upstream.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                response.setStatus(200);
+                response.setContentType("application/json");
+                response.getOutputStream().write(body);
+                baseRequest.setHandled(true);
+            }
+        });
+        upstream.start();
+
+        directory = BenchmarkFixtures.createCacheDirectory();
+        int port = freePort();
+        HttpReplayingProxyConfiguration configuration = new HttpReplayingProxyConfiguration()
+                .urlToProxyTo("http://localhost:" + ((ServerConnector) upstream.getConnectors()[0]).getLocalPort())
+                .portToHostOn(port)
+                .withRootDirectoryForCache(directory);
+        proxy = new HttpReplayingProxy(configuration).start();
+
+        httpClient = HttpClients.createDefault();
+        url = "http://localhost:" + port + "/recorded?query=value";
+        if (get().getFirstHeader("x-http-replaying-proxy-cached") != null) {
+            throw new IllegalStateException("The first call should have been recorded, not replayed");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        httpClient.close();
+        proxy.stop();
+        upstream.stop();
+        BenchmarkFixtures.deleteCacheDirectory(directory);
+    }
+
+    @Benchmark
+    public CloseableHttpResponse hit() throws IOException {
+        return get();
+    }
+
+    private CloseableHttpResponse get() throws IOException {
+        CloseableHttpResponse response = httpClient.execute(new HttpGet(url));
+        try {
+            EntityUtils.consume(response.getEntity());
+            return response;
+        } finally {
+            response.close();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.server.ByteBufferQueuedHttpInput;
+import org.eclipse.jetty.server.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning an incoming Jetty request into a RequestToProxy and building its match key, which happens on every request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestToProxyBenchmark {
+
+    @Param({"0", "1024"})
+    public int bodySize;
+
+    @Param({"MATCH_NAME_AND_VALUE", "IGNORE_HEADERS"})
+    public MatchHeaders matchHeaders;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = new byte[bodySize];
+    }
+
+    @Benchmark
+    public String fromAndMatchKey() throws IOException {
+        return RequestToProxy.from(jettyRequest(), matchHeaders).getMatchKey();
+    }
+
+    @Benchmark
+    public Request baseline() {
+        // The cost of building the Jetty request on its own, to subtract from fromAndMatchKey.
+        return jettyRequest();
+    }
+
+    private Request jettyRequest() {
+        final ByteBufferQueuedHttpInput input = new ByteBufferQueuedHttpInput();
+        input.content(ByteBuffer.wrap(body));
+        input.messageComplete();
+        // Without a connection behind it, Jetty can't hand out the input stream itself.
+        Request request = new Request(null, input) {
+            @Override
+            public ServletInputStream getInputStream() {
+                return input;
+            }
+        };
+        request.setMethod(org.eclipse.jetty.http.HttpMethod.POST, "POST");
+        request.setUri(new HttpURI("/orders/42?expand=items"));
+        request.setPathInfo("/orders/42");
+        request.setQueryString("expand=items");
+        request.getHttpFields().add("Host", "localhost:8585");
+        request.getHttpFields().add("Accept", "application/json");
+        request.getHttpFields().add("Accept-Encoding", "gzip,deflate");
+        request.getHttpFields().add("Content-Type", "application/json");
+        request.getHttpFields().add("Content-Length", String.valueOf(bodySize));
+        request.getHttpFields().add("User-Agent", "Apache-HttpClient/4.3.4 (java 1.5)");
+        return request;
+    }
+}
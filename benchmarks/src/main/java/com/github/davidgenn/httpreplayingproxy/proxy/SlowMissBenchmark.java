@@ -0,0 +1,125 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of cache misses when more clients are waiting on a slow 'real' service than Jetty's default
+ * thread pool has threads, with requests handled on that pool or on virtual threads. The virtual threads need Java 21 or
+ * later.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(SlowMissBenchmark.CLIENTS)
+@State(Scope.Benchmark)
+public class SlowMissBenchmark {
+
+    static final int CLIENTS = 400;
+    private static final int UPSTREAM_DELAY_MILLIS = 100;
+
+    @Param({"false", "true"})
+    public boolean useVirtualThreads;
+
+    private final AtomicLong requests = new AtomicLong();
+    private String directory;
+    private Server upstream;
+    private Server proxy;
+    private CloseableHttpClient httpClient;
+    private String url;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Jetty's default pool would be the bottleneck of the 'real' service as well, so give it as many threads as it needs.
+        upstream = new Server(new ExecutorThreadPool(Executors.newCachedThreadPool()));
+        upstream.addConnector(new ServerConnector(upstream));
+        upstream.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                try {
+                    Thread.sleep(UPSTREAM_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setStatus(200);
+                response.getOutputStream().write(("<response>" + target + "</response>").getBytes("UTF-8"));
+                baseRequest.setHandled(true);
+            }
+        });
+        upstream.start();
+
+        directory = BenchmarkFixtures.createCacheDirectory();
+        int port = freePort();
+        HttpReplayingProxyConfiguration configuration = new HttpReplayingProxyConfiguration()
+                .urlToProxyTo("http://localhost:" + ((ServerConnector) upstream.getConnectors()[0]).getLocalPort())
+                .portToHostOn(port)
+                .maxUpstreamConnections(CLIENTS)
+                .maxUpstreamConnectionsPerRoute(CLIENTS)
+                .useVirtualThreads(useVirtualThreads)
+                .withRootDirectoryForCache(directory);
+        proxy = new HttpReplayingProxy(configuration).start();
+
+        httpClient = HttpClients.custom().setMaxConnTotal(CLIENTS).setMaxConnPerRoute(CLIENTS).build();
+        url = "http://localhost:" + port + "/miss/";
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        httpClient.close();
+        proxy.stop();
+        upstream.stop();
+        BenchmarkFixtures.deleteCacheDirectory(directory);
+    }
+
+    @Benchmark
+    public int miss() throws IOException {
+        // A path never asked for before, so that every request goes through to the 'real' service.
+        CloseableHttpResponse response = httpClient.execute(new HttpGet(url + requests.incrementAndGet()));
+        try {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        } finally {
+            response.close();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+/**
+ * An entry in the FileBasedCache's index: where a recorded response is stored and, if it is held in memory, the response itself.
+ */
+class CacheEntry {
+
+    private final String location;
+    private final String matchKey;
+    private final long timeCreatedUtcMillis;
+    private final CachedResponse response;
+
+    /**
+     * Creates a CacheEntry for a response that is held in memory.
+     * @param location Where the response is stored.
+     * @param response The response.
+     */
+    public CacheEntry(String location, CachedResponse response) {
+        this.location = location;
+        this.matchKey = response.getRequestToProxy().getMatchKey();
+        this.timeCreatedUtcMillis = response.getTimeCreatedUtcMillis();
+        this.response = response;
+    }
+
+    /**
+     * Creates a CacheEntry for a response that is only on disk.
+     * @param location Where the response is stored.
+     * @param matchKey The match key of the recorded request.
+     * @param timeCreatedUtcMillis When the response was recorded.
+     */
+    public CacheEntry(String location, String matchKey, long timeCreatedUtcMillis) {
+        this.location = location;
+        this.matchKey = matchKey;
+        this.timeCreatedUtcMillis = timeCreatedUtcMillis;
+        this.response = null;
+    }
+
+    /**
+     * @return Where the response is stored. Only meaningful to the FixtureStore that stored it.
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return The match key of the recorded request.
+     */
+    public String getMatchKey() {
+        return matchKey;
+    }
+
+    /**
+     * @return When the response was recorded.
+     */
+    public long getTimeCreatedUtcMillis() {
+        return timeCreatedUtcMillis;
+    }
+
+    /**
+     * @return The response, or null if it has to be read from the FixtureStore.
+     */
+    public CachedResponse getResponse() {
+        return response;
+    }
+}
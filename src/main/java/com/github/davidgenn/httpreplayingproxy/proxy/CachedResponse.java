@@ -1,34 +1,110 @@
 package com.github.davidgenn.httpreplayingproxy.proxy;
 
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * An element in the FileBasedCache.
  */
 class CachedResponse {
 
-    private final String content;
+    static final String GZIP = "gzip";
+
+    /**
+     * Bodies smaller than this are never compressed. The gzip header and trailer alone take up 18 bytes.
+     */
+    static final int MIN_COMPRESSIBLE_BYTES = 256;
+
+    private final ByteBuffer body;
     private final int statusCode;
 	private final RequestToProxy requestToProxy;
     private final long timeCreatedUtcMillis;
     private final String contentType;
+    private final String contentEncoding;
+    private final String eTag;
+    private final String lastModified;
+    private volatile ReplayFrame replayFrame;
+    private volatile ReplayFrame decodedReplayFrame;
 
     /**
      * Creates a CachedResponse.
      * @param statusCode The status code.
      * @param requestToProxy The request to proxy.
-     * @param content The content of the response.
+     * @param body The body of the response, exactly as it was received.
      * @param contentType The content type of the responses. Used to set the Content_Type header.
      *
      */
-    public CachedResponse(int statusCode, RequestToProxy requestToProxy, String content, String contentType) {
-		this.requestToProxy = requestToProxy;
-		this.statusCode = statusCode;
-        this.content = content;
-        this.contentType = contentType;
-        this.timeCreatedUtcMillis = new Date().getTime();
+    public CachedResponse(int statusCode, RequestToProxy requestToProxy, byte[] body, String contentType) {
+        this(statusCode, requestToProxy, body, contentType, new Date().getTime());
 	}
 
+    /**
+     * Creates a CachedResponse that was recorded at the given time.
+     * @param statusCode The status code.
+     * @param requestToProxy The request to proxy.
+     * @param body The body of the response, exactly as it was received.
+     * @param contentType The content type of the responses. Used to set the Content_Type header.
+     * @param timeCreatedUtcMillis The time created in millis.
+     */
+    CachedResponse(int statusCode, RequestToProxy requestToProxy, byte[] body, String contentType, long timeCreatedUtcMillis) {
+        this(statusCode, requestToProxy, ByteBuffer.wrap(body), contentType, timeCreatedUtcMillis);
+    }
+
+    /**
+     * Creates a CachedResponse whose body is held in a buffer, which may be outside the heap.
+     * @param statusCode The status code.
+     * @param requestToProxy The request to proxy.
+     * @param body The body of the response, between the buffer's position and limit.
+     * @param contentType The content type of the responses. Used to set the Content_Type header.
+     * @param timeCreatedUtcMillis The time created in millis.
+     */
+    CachedResponse(int statusCode, RequestToProxy requestToProxy, ByteBuffer body, String contentType, long timeCreatedUtcMillis) {
+        this(statusCode, requestToProxy, body, contentType, null, timeCreatedUtcMillis);
+    }
+
+    /**
+     * Creates a CachedResponse whose body may be encoded.
+     * @param statusCode The status code.
+     * @param requestToProxy The request to proxy.
+     * @param body The body of the response, between the buffer's position and limit.
+     * @param contentType The content type of the responses. Used to set the Content_Type header.
+     * @param contentEncoding How the body is encoded, e.g. gzip, or null if it isn't.
+     * @param timeCreatedUtcMillis The time created in millis.
+     */
+    CachedResponse(int statusCode, RequestToProxy requestToProxy, ByteBuffer body, String contentType, String contentEncoding, long timeCreatedUtcMillis) {
+        this(statusCode, requestToProxy, body, contentType, contentEncoding, null, null, timeCreatedUtcMillis);
+    }
+
+    /**
+     * Creates a CachedResponse with the validators the 'real' service gave it.
+     * @param statusCode The status code.
+     * @param requestToProxy The request to proxy.
+     * @param body The body of the response, between the buffer's position and limit.
+     * @param contentType The content type of the responses. Used to set the Content_Type header.
+     * @param contentEncoding How the body is encoded, e.g. gzip, or null if it isn't.
+     * @param eTag The ETag header of the response, or null if it didn't have one.
+     * @param lastModified The Last-Modified header of the response, or null if it didn't have one.
+     * @param timeCreatedUtcMillis The time created in millis.
+     */
+    CachedResponse(int statusCode, RequestToProxy requestToProxy, ByteBuffer body, String contentType, String contentEncoding,
+                   String eTag, String lastModified, long timeCreatedUtcMillis) {
+        this.requestToProxy = requestToProxy;
+        this.statusCode = statusCode;
+        this.body = body;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.timeCreatedUtcMillis = timeCreatedUtcMillis;
+    }
+
     /**
      * @return The status code.
      */
@@ -44,10 +120,138 @@ class CachedResponse {
 	}
 
     /**
-     * @return The cached content of the response.
+     * @return The cached body of the response. Copied if the body is held outside the heap.
+     */
+    public byte[] getBody() {
+        if (body.hasArray() && body.arrayOffset() == 0 && body.position() == 0 && body.remaining() == body.array().length) {
+            return body.array();
+        }
+        byte[] copy = new byte[body.remaining()];
+        body.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * @return A read only view of the cached body, ready to be written without copying.
+     */
+    public ByteBuffer getBodyBuffer() {
+        return body.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The length of the cached body in bytes.
+     */
+    public int getBodyLength() {
+        return body.remaining();
+    }
+
+    /**
+     * @param body The body to use instead.
+     * @return A copy of this CachedResponse with a different body.
+     */
+    CachedResponse withBody(ByteBuffer body) {
+        return new CachedResponse(statusCode, requestToProxy, body, contentType, contentEncoding, eTag, lastModified, timeCreatedUtcMillis);
+    }
+
+    /**
+     * @param timeCreatedUtcMillis When the 'real' service confirmed the response is still current.
+     * @param eTag The ETag the 'real' service confirmed it with, or null to keep the one recorded.
+     * @param lastModified The Last-Modified the 'real' service confirmed it with, or null to keep the one recorded.
+     * @return A copy of this CachedResponse that lives for another time to live.
      */
-    public String getContent() {
-        return content;
+    CachedResponse renewed(long timeCreatedUtcMillis, String eTag, String lastModified) {
+        String renewedETag = eTag == null ? this.eTag : (isWeak(this.eTag) ? weakened(eTag) : eTag);
+        return new CachedResponse(statusCode, requestToProxy, body, contentType, contentEncoding,
+                renewedETag, lastModified == null ? this.lastModified : lastModified, timeCreatedUtcMillis);
+    }
+
+    /**
+     * @return A copy of this CachedResponse with its body gzipped, or this one if the body is already encoded, is too
+     * small to be worth it or doesn't get any smaller.
+     */
+    CachedResponse gzipped() throws IOException {
+        if (contentEncoding != null || body.remaining() < MIN_COMPRESSIBLE_BYTES) {
+            return this;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.remaining() / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(getBody());
+        gzip.close();
+        if (compressed.size() >= body.remaining()) {
+            return this;
+        }
+        return new CachedResponse(statusCode, requestToProxy, ByteBuffer.wrap(compressed.toByteArray()), contentType, GZIP,
+                weakened(eTag), lastModified, timeCreatedUtcMillis);
+    }
+
+    /**
+     * @return A copy of this CachedResponse with its body gunzipped, or this one if the body isn't gzipped. Bodiless
+     * responses, such as the answer to a HEAD, are left alone.
+     */
+    CachedResponse gunzipped() throws IOException {
+        if (!isGzipped() || !body.hasRemaining()) {
+            return this;
+        }
+        InputStream gzip = new GZIPInputStream(new ByteBufferInputStream(body.duplicate()));
+        try {
+            return new CachedResponse(statusCode, requestToProxy, ByteBuffer.wrap(IOUtils.toByteArray(gzip)), contentType, null,
+                    weakened(eTag), lastModified, timeCreatedUtcMillis);
+        } finally {
+            gzip.close();
+        }
+    }
+
+    /**
+     * A strong ETag promises the exact bytes of the body. Once the proxy has re-encoded the body, the 'real' service's
+     * ETag can only still be a weak one.
+     */
+    private static String weakened(String eTag) {
+        return eTag == null || isWeak(eTag) ? eTag : "W/" + eTag;
+    }
+
+    private static boolean isWeak(String eTag) {
+        return eTag != null && eTag.startsWith("W/");
+    }
+
+    /**
+     * @return Whether the 'real' service gave the response an ETag or Last-Modified to revalidate it with.
+     */
+    boolean hasValidator() {
+        return eTag != null || lastModified != null;
+    }
+
+    /**
+     * @return Whether the body is gzipped.
+     */
+    boolean isGzipped() {
+        return GZIP.equalsIgnoreCase(contentEncoding);
+    }
+
+    /**
+     * Returns the response ready to replay. It is built the first time it is asked for and reused after that. Two
+     * threads asking at once may both build it, which does no harm.
+     * @param acceptsGzip Whether the client accepts a gzipped body. A gzipped body is decoded, once, for those that don't.
+     * @param statistics Where to record decoding a body.
+     * @return The response ready to replay.
+     * @throws IOException If a gzipped body can't be decoded.
+     */
+    ReplayFrame replayFrame(boolean acceptsGzip, ProxyStatistics statistics) throws IOException {
+        if (isGzipped() && !acceptsGzip) {
+            ReplayFrame decoded = decodedReplayFrame;
+            if (decoded == null) {
+                statistics.recordBodyDecoded();
+                CachedResponse gunzipped = gunzipped();
+                decoded = new ReplayFrame(gunzipped.withBody(ReplayFrame.direct(gunzipped.getBodyBuffer())), true);
+                decodedReplayFrame = decoded;
+            }
+            return decoded;
+        }
+        ReplayFrame frame = replayFrame;
+        if (frame == null) {
+            frame = new ReplayFrame(this, isGzipped());
+            replayFrame = frame;
+        }
+        return frame;
     }
 
     /**
@@ -64,6 +268,27 @@ class CachedResponse {
         return contentType;
     }
 
+    /**
+     * @return How the body is encoded, e.g. gzip, or null if it isn't. Used to set the Content-Encoding header.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @return The ETag the 'real' service gave the response, or null if it gave none.
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return The Last-Modified date the 'real' service gave the response, as it was sent, or null if it gave none.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -83,4 +308,36 @@ class CachedResponse {
         result = 31 * result + (requestToProxy != null ? requestToProxy.hashCode() : 0);
         return result;
     }
+
+    /**
+     * Reads a buffer, which may be outside the heap, without copying it first.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
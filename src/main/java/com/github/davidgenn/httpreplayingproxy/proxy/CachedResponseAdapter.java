@@ -0,0 +1,102 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import com.google.common.io.BaseEncoding;
+import com.google.gson.*;
+import org.apache.http.entity.ContentType;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads and writes a CachedResponse as JSON.
+ * <p>
+ *     Bodies that are text in the charset of their content type are written to the 'content' property so fixtures stay readable.
+ *     Any other body is written, base64 encoded, to the 'binaryContent' property so that it is replayed byte for byte.
+ *     Compressed bodies are always binary. Their encoding is written to the 'contentEncoding' property.
+ *     The validators the 'real' service gave, if any, are written to the 'eTag' and 'lastModified' properties.
+ * </p>
+ * <p>The requests read back are matched by the rules the adapter was created with.</p>
+ */
+class CachedResponseAdapter implements JsonSerializer<CachedResponse>, JsonDeserializer<CachedResponse> {
+
+    /**
+     * The properties that can hold the body.
+     */
+    static final List<String> BODY_PROPERTIES = Arrays.asList("content", "binaryContent");
+
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    private final CompiledMatchRules matchRules;
+
+    /**
+     * Creates a CachedResponseAdapter.
+     * @param matchRules The rules the requests read back are matched by.
+     */
+    CachedResponseAdapter(CompiledMatchRules matchRules) {
+        this.matchRules = matchRules;
+    }
+
+    @Override
+    public JsonElement serialize(CachedResponse src, Type typeOfSrc, JsonSerializationContext context) {
+        JsonObject json = new JsonObject();
+        Charset charset = charsetOf(src.getContentType());
+        String text = src.getContentEncoding() == null ? new String(src.getBody(), charset) : null;
+        if (text != null && Arrays.equals(text.getBytes(charset), src.getBody())) {
+            json.addProperty("content", text);
+        } else {
+            json.addProperty("binaryContent", BaseEncoding.base64().encode(src.getBody()));
+        }
+        json.addProperty("statusCode", src.getStatusCode());
+        json.add("requestToProxy", context.serialize(src.getRequestToProxy()));
+        json.addProperty("timeCreatedUtcMillis", src.getTimeCreatedUtcMillis());
+        json.addProperty("contentType", src.getContentType());
+        if (src.getContentEncoding() != null) {
+            json.addProperty("contentEncoding", src.getContentEncoding());
+        }
+        if (src.getETag() != null) {
+            json.addProperty("eTag", src.getETag());
+        }
+        if (src.getLastModified() != null) {
+            json.addProperty("lastModified", src.getLastModified());
+        }
+        return json;
+    }
+
+    @Override
+    public CachedResponse deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+        JsonObject jsonObject = json.getAsJsonObject();
+        String contentType = jsonObject.has("contentType") ? jsonObject.get("contentType").getAsString() : "";
+        byte[] body;
+        if (jsonObject.has("binaryContent")) {
+            body = BaseEncoding.base64().decode(jsonObject.get("binaryContent").getAsString());
+        } else if (jsonObject.has("content")) {
+            body = jsonObject.get("content").getAsString().getBytes(charsetOf(contentType));
+        } else {
+            body = new byte[0];
+        }
+        return new CachedResponse(
+                jsonObject.get("statusCode").getAsInt(),
+                context.<RequestToProxy>deserialize(jsonObject.get("requestToProxy"), RequestToProxy.class).withMatchRules(matchRules),
+                ByteBuffer.wrap(body),
+                contentType,
+                jsonObject.has("contentEncoding") ? jsonObject.get("contentEncoding").getAsString() : null,
+                jsonObject.has("eTag") ? jsonObject.get("eTag").getAsString() : null,
+                jsonObject.has("lastModified") ? jsonObject.get("lastModified").getAsString() : null,
+                jsonObject.get("timeCreatedUtcMillis").getAsLong());
+    }
+
+    private static Charset charsetOf(String contentType) {
+        if (contentType == null || contentType.isEmpty()) {
+            return DEFAULT_CHARSET;
+        }
+        try {
+            Charset charset = ContentType.parse(contentType).getCharset();
+            return charset != null ? charset : DEFAULT_CHARSET;
+        } catch (RuntimeException e) {
+            return DEFAULT_CHARSET;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * MatchRules compiled ready to apply to each request as its match key is built.
+ * <p>
+ *     Header names are looked up in sets that ignore case without copying the name. The ignored JSON body fields are
+ *     compiled into a tree of field names, so a body is walked once whatever the number of rules, and the path templates
+ *     into a PathTemplateTrie. Every part of a request that no rule applies to is passed through untouched, without being
+ *     parsed.
+ * </p>
+ * <p>
+ *     The fingerprint changes whenever the rules do. It is saved with any match keys written to disk, so that they are
+ *     rebuilt rather than trusted once the rules have changed.
+ * </p>
+ */
+class CompiledMatchRules {
+
+    private static final Charset JSON_CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * No rules. Every request is matched as it is.
+     */
+    static final CompiledMatchRules NONE = new MatchRules().compile();
+
+    private final PathTemplateTrie pathTemplates;
+    private final Set<String> ignoredQueryParameters;
+    private final boolean ignoreQueryParameterOrder;
+    private final boolean rewritesQuery;
+    private final FieldTree ignoredJsonBodyFields;
+    private final Set<String> matchedHeaders;
+    private final Set<String> ignoredHeaders;
+    private final boolean filtersHeaders;
+    private final String fingerprint;
+    private final Gson gson = new Gson();
+
+    CompiledMatchRules(MatchRules rules) {
+        this.pathTemplates = new PathTemplateTrie();
+        for (String template : rules.getPathTemplates()) {
+            pathTemplates.add(template);
+        }
+        this.ignoredQueryParameters = new HashSet<String>(rules.getIgnoredQueryParameters());
+        this.ignoreQueryParameterOrder = rules.shouldIgnoreQueryParameterOrder();
+        this.rewritesQuery = ignoreQueryParameterOrder || !ignoredQueryParameters.isEmpty();
+        this.ignoredJsonBodyFields = new FieldTree();
+        for (String path : rules.getIgnoredJsonBodyFields()) {
+            ignoredJsonBodyFields.add(path.split("\\."));
+        }
+        this.matchedHeaders = caseInsensitive(rules.getMatchedHeaders());
+        this.ignoredHeaders = caseInsensitive(rules.getIgnoredHeaders());
+        this.filtersHeaders = !matchedHeaders.isEmpty() || !ignoredHeaders.isEmpty();
+        this.fingerprint = fingerprintOf(rules);
+    }
+
+    private static Set<String> caseInsensitive(Set<String> names) {
+        Set<String> set = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        set.addAll(names);
+        return set;
+    }
+
+    /**
+     * @return A short hash of a description of the rules that doesn't depend on the order they were given in.
+     */
+    private static String fingerprintOf(MatchRules rules) {
+        StringBuilder description = new StringBuilder();
+        description.append("paths=").append(sorted(rules.getPathTemplates(), false));
+        description.append(";query=").append(sorted(rules.getIgnoredQueryParameters(), false));
+        description.append(";queryOrder=").append(rules.shouldIgnoreQueryParameterOrder() ? "ignored" : "matched");
+        description.append(";json=").append(sorted(rules.getIgnoredJsonBodyFields(), false));
+        description.append(";onlyHeaders=").append(sorted(rules.getMatchedHeaders(), true));
+        description.append(";ignoredHeaders=").append(sorted(rules.getIgnoredHeaders(), true));
+        return Hashing.sha1().hashString(description, JSON_CHARSET).toString().substring(0, 16);
+    }
+
+    private static List<String> sorted(Set<String> values, boolean ignoreCase) {
+        List<String> sorted = new ArrayList<String>();
+        for (String value : values) {
+            sorted.add(ignoreCase ? value.toLowerCase() : value);
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return Whether the header is matched at all. How it is matched is up to the MatchHeaders.
+     */
+    boolean matchesHeader(String name) {
+        if (!filtersHeaders) {
+            return true;
+        }
+        if (!matchedHeaders.isEmpty() && !matchedHeaders.contains(name)) {
+            return false;
+        }
+        return !ignoredHeaders.contains(name);
+    }
+
+    /**
+     * @param requestPath The path and query of a request.
+     * @return The path replaced by the most specific template it matches, if any, with the ignored query parameters left
+     * out and the rest sorted if their order is ignored.
+     */
+    String canonicalPath(String requestPath) {
+        int queryStart = requestPath.indexOf('?');
+        if (!pathTemplates.isEmpty()) {
+            String template = pathTemplates.match(queryStart < 0 ? requestPath : requestPath.substring(0, queryStart));
+            if (template != null) {
+                requestPath = queryStart < 0 ? template : template + requestPath.substring(queryStart);
+                queryStart = queryStart < 0 ? -1 : template.length();
+            }
+        }
+        if (!rewritesQuery || queryStart < 0) {
+            return requestPath;
+        }
+        String[] parameters = requestPath.substring(queryStart + 1).split("&");
+        List<String> kept = new ArrayList<String>(parameters.length);
+        for (String parameter : parameters) {
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            if (!parameter.isEmpty() && !ignoredQueryParameters.contains(name)) {
+                kept.add(parameter);
+            }
+        }
+        if (ignoreQueryParameterOrder) {
+            Collections.sort(kept);
+        }
+        StringBuilder canonical = new StringBuilder(requestPath.length()).append(requestPath, 0, queryStart);
+        for (int i = 0; i < kept.size(); i++) {
+            canonical.append(i == 0 ? '?' : '&').append(kept.get(i));
+        }
+        return canonical.toString();
+    }
+
+    /**
+     * @param body The body of a request, in the first length bytes.
+     * @param contentType The Content-Type of the request, or null.
+     * @return The body without the ignored JSON fields, or null if no field is ignored or the body isn't JSON.
+     */
+    byte[] canonicalBody(byte[] body, int length, String contentType) {
+        if (ignoredJsonBodyFields.isEmpty() || length == 0 || !isJson(body, length, contentType)) {
+            return null;
+        }
+        try {
+            JsonElement json = new JsonParser().parse(new InputStreamReader(new ByteArrayInputStream(body, 0, length), JSON_CHARSET));
+            ignoredJsonBodyFields.removeFrom(json);
+            return gson.toJson(json).getBytes(JSON_CHARSET);
+        } catch (JsonParseException e) {
+            // Not JSON after all. Match it as it is.
+            return null;
+        }
+    }
+
+    private static boolean isJson(byte[] body, int length, String contentType) {
+        if (contentType != null) {
+            return contentType.toLowerCase().contains("json");
+        }
+        for (int i = 0; i < length; i++) {
+            if (!Character.isWhitespace(body[i])) {
+                return body[i] == '{' || body[i] == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The fingerprint of the rules.
+     */
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * The ignored JSON fields, one level of field names per node.
+     */
+    private static class FieldTree {
+
+        private final Map<String, FieldTree> children = new HashMap<String, FieldTree>();
+        private boolean ignored;
+
+        void add(String[] path) {
+            FieldTree node = this;
+            for (String name : path) {
+                FieldTree child = node.children.get(name);
+                if (child == null) {
+                    child = new FieldTree();
+                    node.children.put(name, child);
+                }
+                node = child;
+            }
+            node.ignored = true;
+        }
+
+        boolean isEmpty() {
+            return children.isEmpty();
+        }
+
+        void removeFrom(JsonElement json) {
+            if (json.isJsonArray()) {
+                JsonArray array = json.getAsJsonArray();
+                for (int i = 0; i < array.size(); i++) {
+                    removeFrom(array.get(i));
+                }
+            } else if (json.isJsonObject()) {
+                JsonObject object = json.getAsJsonObject();
+                for (Map.Entry<String, FieldTree> child : children.entrySet()) {
+                    if (child.getValue().ignored) {
+                        object.remove(child.getKey());
+                    } else if (object.has(child.getKey())) {
+                        child.getValue().removeFrom(object.get(child.getKey()));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MatchRules(" + fingerprint + ")";
+    }
+}
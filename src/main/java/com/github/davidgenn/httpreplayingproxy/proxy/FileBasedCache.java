@@ -1,102 +1,338 @@
 package com.github.davidgenn.httpreplayingproxy.proxy;
 
 
-import com.google.gson.*;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.message.BasicHeader;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The cache used to store the responses.
+ * <p>Safe to use from many Jetty worker threads at once: lookups never block and new recordings are indexed without a global lock.</p>
+ * <p>
+ *     When loading lazily, startup only reads the match key of each recorded response. Responses are read from disk the
+ *     first time they are asked for and a bounded number of them are kept in memory.
+ * </p>
+ * <p>
+ *     Given a memory budget in bytes, the least recently used responses beyond it are dropped from memory, whether they
+ *     were loaded lazily or not. They stay on disk and are read again the next time they are asked for.
+ * </p>
+ * <p>
+ *     Writing behind, a new recording is indexed and held in memory straight away and a FixtureWriter saves it to disk in
+ *     the background. It can only be dropped from memory once it has been saved.
+ * </p>
+ * <p>
+ *     When watching, fixtures added, edited or deleted on disk by anything other than the cache itself are read into, or
+ *     dropped from, the live index as they change, without reloading the rest.
+ * </p>
+ * <p>
+ *     Compacting removes every recording on disk that has been superseded by a newer recording of the same request, and
+ *     every recording past the time to live unless expired responses are still being served. It can run on a schedule
+ *     or on demand.
+ * </p>
+ * <p>
+ *     When compressing, new recordings are gzipped before they are stored and are held in memory gzipped too, ready to
+ *     be sent as they are to clients that accept gzip.
+ * </p>
  */
-class FileBasedCache {
+class FileBasedCache implements Closeable {
 
     public static final String RESET_CACHE_AT_STARTUP = "reset.httpreplayingproxy.cache";
 
+    private static final Logger LOG = LoggerFactory.getLogger(FileBasedCache.class);
+
+    private static final String ROUTES_DIRECTORY = "routes";
+
     private final String rootDirectory;
-    private final Map<String, CachedResponse> cache = new HashMap<String, CachedResponse>();
+    private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>(); // keyed by match key
     private final long timeToLiveInSeconds;
+    private final FixtureStore store;
+    private final ProxyStatistics statistics;
+    private final boolean loadLazily;
+    private final boolean boundedResidency;
+    private final LoadingCache<CacheEntry, CachedResponse> residentResponses;
+    private final FixtureWrites fixtureWrites;
+    private final FixtureWriter writer;
+    private final boolean compressFixtures;
+    private final Set<String> ownWrites = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final FixtureWatcher watcher;
+    private final boolean keepExpiredFixtures;
+    private final ScheduledExecutorService compactor;
 
     /**
-     * Creates a FileBasedCache.
+     * Creates a FileBasedCache that stores each response in its own JSON file.
      * @param rootDirectory The directory to cache the responses in.
+     * @param timeToLiveInSeconds How long a cached response is valid for.
      * @throws IOException
      */
     public FileBasedCache(String rootDirectory, long timeToLiveInSeconds) throws IOException {
+        this(rootDirectory, timeToLiveInSeconds, new HttpReplayingProxyConfiguration(), new ProxyStatistics());
+    }
+
+    /**
+     * Creates a FileBasedCache.
+     * @param rootDirectory The directory to cache the responses in.
+     * @param timeToLiveInSeconds How long a cached response is valid for.
+     * @param configuration How the cache should store and load responses.
+     * @param statistics Where to record what the cache has done.
+     * @throws IOException
+     */
+    public FileBasedCache(String rootDirectory, long timeToLiveInSeconds, HttpReplayingProxyConfiguration configuration, ProxyStatistics statistics) throws IOException {
+        this(rootDirectory, timeToLiveInSeconds, configuration.getMatchRules().compile(), configuration, statistics);
+    }
+
+    /**
+     * Creates a FileBasedCache whose responses are matched by rules.
+     * @param rootDirectory The directory to cache the responses in.
+     * @param timeToLiveInSeconds How long a cached response is valid for.
+     * @param matchRules The rules requests are matched by. Responses read from disk are keyed by them.
+     * @param configuration How the cache should store and load responses.
+     * @param statistics Where to record what the cache has done.
+     * @throws IOException
+     */
+    FileBasedCache(String rootDirectory, long timeToLiveInSeconds, CompiledMatchRules matchRules,
+                   HttpReplayingProxyConfiguration configuration, ProxyStatistics statistics) throws IOException {
         if (!rootDirectory.endsWith("/") && !rootDirectory.endsWith("\\")) {
             rootDirectory = rootDirectory + "/";
         }
         this.rootDirectory = rootDirectory;
         this.timeToLiveInSeconds = timeToLiveInSeconds;
         resetCacheAtStartup(rootDirectory);
+        this.statistics = statistics;
+        int loadingThreads = configuration.shouldLoadFixturesInParallel() ? Runtime.getRuntime().availableProcessors() : 1;
+        this.store = createStore(configuration.getFixtureStorage(), resolveCacheDirectory(rootDirectory), loadingThreads, matchRules);
+        this.loadLazily = configuration.shouldLoadFixturesLazily();
+        this.boundedResidency = loadLazily || configuration.getMaxResidentBytes() > 0;
+        this.residentResponses = residentResponses(configuration);
         prePopulateCache();
+        this.compressFixtures = configuration.shouldCompressFixtures();
+        this.fixtureWrites = configuration.getFixtureWrites();
+        this.writer = FixtureWrites.WRITE_BEHIND == fixtureWrites ? createWriter(configuration) : null;
+        this.watcher = configuration.shouldWatchFixtures() ? createWatcher(configuration) : null;
+        this.keepExpiredFixtures = configuration.shouldServeStaleWhileRevalidating();
+        this.compactor = configuration.getCompactFixturesEveryMillis() > 0 ? createCompactor(configuration.getCompactFixturesEveryMillis()) : null;
     }
 
-    private void prePopulateCache() throws IOException {
-        File directory = resolveCacheDirectory(rootDirectory);
-        Gson gson = getGson();
-        if (directory.listFiles() == null) {
-            return;
-        }
-        for (File file : directory.listFiles()) {
-            if (file.isDirectory()) {
-                continue;
+    private ScheduledExecutorService createCompactor(final long intervalMillis) {
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("httpreplayingproxy-fixture-compactor").setDaemon(true).build());
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    LOG.error("Unable to compact the cached responses in " + rootDirectory + ", will try again in " + intervalMillis + "ms", e);
+                }
             }
-            CachedResponse requestToProxy = gson.fromJson(IOUtils.toString(new FileReader(file)), CachedResponse.class);
-            cache.put(file.getAbsolutePath(), requestToProxy);
-        }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return compactor;
     }
 
-    private static File resolveCacheDirectory(String rootDirectory) {
-        File directory = new File(rootDirectory);
-        directory.mkdirs();
-        return directory;
+    private FixtureWatcher createWatcher(HttpReplayingProxyConfiguration configuration) throws IOException {
+        int depth;
+        switch (configuration.getFixtureStorage()) {
+            case JSON_FILES:
+                depth = 0;
+                break;
+            case SHARDED_JSON_FILES:
+                depth = 2;
+                break;
+            default:
+                LOG.warn("Fixtures stored as " + configuration.getFixtureStorage() + " can't be watched, restart to pick up changes");
+                return null;
+        }
+        return new FixtureWatcher(resolveCacheDirectory(rootDirectory), depth, new FixtureWatcher.Listener() {
+            @Override
+            public void fixturesChanged(Set<String> changed, Set<String> deleted, boolean complete) {
+                reload(changed, deleted, complete);
+            }
+        }, configuration.getWatchDebounceMillis());
     }
 
-    private Gson getGson() {
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(Header.class, new InstanceCreator<Header>() {
+    private FixtureWriter createWriter(HttpReplayingProxyConfiguration configuration) {
+        return new FixtureWriter(store, statistics, new FixtureWriter.Listener() {
             @Override
-            public Header createInstance(Type type) {
-                return new BasicHeader("", "");
+            public void written(CacheEntry pending, String location) {
+                saved(pending, location);
             }
-        });
-        builder.registerTypeAdapter(HttpEntity.class, new InstanceCreator<HttpEntity>() {
+        }, configuration.getWriteBehindFlushIntervalMillis(), configuration.getMaxPendingWrites());
+    }
+
+    private LoadingCache<CacheEntry, CachedResponse> residentResponses(HttpReplayingProxyConfiguration configuration) {
+        CacheBuilder<CacheEntry, CachedResponse> builder = CacheBuilder.newBuilder()
+                .removalListener(new RemovalListener<CacheEntry, CachedResponse>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<CacheEntry, CachedResponse> notification) {
+                        statistics.recordNoLongerResident(weigh(notification.getKey(), notification.getValue()), notification.wasEvicted());
+                    }
+                });
+        if (configuration.getMaxResidentBytes() > 0) {
+            builder.maximumWeight(configuration.getMaxResidentBytes())
+                    .weigher(new Weigher<CacheEntry, CachedResponse>() {
+                        @Override
+                        public int weigh(CacheEntry entry, CachedResponse response) {
+                            return (int) Math.min(Integer.MAX_VALUE, FileBasedCache.weigh(entry, response));
+                        }
+                    });
+        } else {
+            builder.maximumSize(configuration.getMaxResidentResponses());
+        }
+        return builder.build(new CacheLoader<CacheEntry, CachedResponse>() {
             @Override
-            public HttpEntity createInstance(Type type) {
-                try {
-                    return new StringEntity("");
-                } catch (UnsupportedEncodingException e) {
-                   throw new RuntimeException(e);
-                }
+            public CachedResponse load(CacheEntry entry) throws IOException {
+                CachedResponse response = store.read(entry.getLocation());
+                statistics.recordResponseReadFromDisk();
+                statistics.recordResident(weigh(entry, response));
+                return response;
             }
         });
-        builder.registerTypeAdapter(Header.class, new JsonDeserializer<Header>() {
-            @Override
-            public Header deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-                JsonObject jsonObject = json.getAsJsonObject();
-                return new BasicHeader(jsonObject.get("name").getAsString(), jsonObject.get("value").getAsString());
+    }
+
+    /**
+     * @return Roughly how many bytes of memory a response held in memory takes up. Bodies that are mapped from disk rather
+     * than copied onto the heap only count their metadata.
+     */
+    static long weigh(CacheEntry entry, CachedResponse response) {
+        long metadata = 64 + 2L * entry.getMatchKey().length();
+        if (entry.getLocation() != null) {
+            metadata += 2L * entry.getLocation().length();
+        }
+        if (response.getContentType() != null) {
+            metadata += 2L * response.getContentType().length();
+        }
+        return metadata + (response.getBodyBuffer().isDirect() ? 0 : response.getBodyLength());
+    }
+
+    static FixtureStore createStore(FixtureStorage fixtureStorage, File directory, int loadingThreads) throws IOException {
+        return createStore(fixtureStorage, directory, loadingThreads, CompiledMatchRules.NONE);
+    }
+
+    static FixtureStore createStore(FixtureStorage fixtureStorage, File directory, int loadingThreads, CompiledMatchRules matchRules) throws IOException {
+        switch (fixtureStorage) {
+            case JSON_FILES:
+                return new JsonFixtureStore(directory, loadingThreads, false, matchRules);
+            case MAPPED_SEGMENT:
+                return new SegmentFixtureStore(directory, matchRules);
+            case SHARDED_JSON_FILES:
+                return new JsonFixtureStore(directory, loadingThreads, true, matchRules);
+            default:
+                throw new IllegalArgumentException("Fixture storage=" + fixtureStorage + " is currently unsupported.");
+        }
+    }
+
+    private void prePopulateCache() throws IOException {
+        long started = System.nanoTime();
+        List<String> unreadable = new ArrayList<String>();
+        List<CacheEntry> entries = loadLazily ? store.summarise(unreadable) : store.readAll(unreadable);
+        for (CacheEntry entry : entries) {
+            if (boundedResidency && entry.getResponse() != null) {
+                keepResident(entry.getLocation(), entry.getResponse());
+            } else {
+                index(entry);
             }
-        });
-        builder.registerTypeAdapter(HttpEntity.class, new JsonDeserializer<HttpEntity>() {
-            @Override
-            public HttpEntity deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-                try {
-                    return new StringEntity(json.getAsString());
-                } catch (UnsupportedEncodingException e) {
-                    throw new RuntimeException(e);
-                }
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        statistics.recordFixturesLoaded(entries.size(), unreadable.size(), elapsedMillis);
+        if (unreadable.isEmpty()) {
+            LOG.info("Loaded " + entries.size() + " cached responses from " + rootDirectory + " in " + elapsedMillis + "ms");
+        } else {
+            LOG.warn("Loaded " + entries.size() + " cached responses from " + rootDirectory + " in " + elapsedMillis + "ms. Skipped " + unreadable.size() + " unreadable: " + unreadable);
+        }
+    }
+
+    /**
+     * Indexes an entry by its match key. If the same request has been recorded more than once, the newest recording wins.
+     */
+    private void index(CacheEntry entry) {
+        String matchKey = entry.getMatchKey();
+        while (true) {
+            CacheEntry existing = cache.putIfAbsent(matchKey, entry);
+            if (existing == null) {
+                statistics.recordCachedResponses(1);
+                holdInMemory(entry);
+                return;
             }
-        });
-        return builder.create();
+            if (compareRecordings(existing, entry) > 0) {
+                residentResponses.invalidate(entry);
+                return;
+            }
+            if (cache.replace(matchKey, existing, entry)) {
+                holdInMemory(entry);
+                release(existing);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Orders two recordings of the same request by when they were made, then by where they are stored, so that index() and
+     * compact() keep the same one of two recordings made in the same millisecond. A recording not yet on disk comes after
+     * any that are.
+     */
+    private static int compareRecordings(CacheEntry first, CacheEntry second) {
+        int byTime = Long.valueOf(first.getTimeCreatedUtcMillis()).compareTo(second.getTimeCreatedUtcMillis());
+        if (byTime != 0 || first.getLocation() == null && second.getLocation() == null) {
+            return byTime;
+        }
+        if (first.getLocation() == null || second.getLocation() == null) {
+            return first.getLocation() == null ? 1 : -1;
+        }
+        return first.getLocation().compareTo(second.getLocation());
+    }
+
+    /**
+     * Counts the memory taken up by a response held by its index entry, rather than by residentResponses.
+     */
+    private void holdInMemory(CacheEntry entry) {
+        if (entry.getResponse() != null) {
+            statistics.recordResident(weigh(entry, entry.getResponse()));
+        }
+    }
+
+    private void release(CacheEntry entry) {
+        if (entry.getResponse() != null) {
+            statistics.recordNoLongerResident(weigh(entry, entry.getResponse()), false);
+        }
+        residentResponses.invalidate(entry);
+    }
+
+    static File resolveCacheDirectory(String rootDirectory) {
+        File directory = new File(rootDirectory);
+        directory.mkdirs();
+        return directory;
+    }
+
+    /**
+     * @param rootDirectory The root directory for the cache.
+     * @param routeName The name of a ProxyRoute.
+     * @return The directory the route's responses are cached in.
+     */
+    static String routeDirectory(String rootDirectory, String routeName) {
+        return new File(new File(rootDirectory, ROUTES_DIRECTORY), routeName).getPath();
     }
 
     private void resetCacheAtStartup(String rootDirectory) {
@@ -111,38 +347,204 @@ class FileBasedCache {
      * @param content The content to cache.
      * @throws IOException
      */
-    public void put(String filename, final CachedResponse content) throws IOException {
+    public void put(String filename, CachedResponse content) throws IOException {
+        if (compressFixtures) {
+            content = content.gzipped();
+        }
+        if (writer != null) {
+            // Not on disk yet, so it has no location and must stay in memory until it is.
+            CacheEntry pending = new CacheEntry(null, content);
+            index(pending);
+            writer.write(filename, pending);
+            return;
+        }
+        long started = System.nanoTime();
+        String location = store.write(filename, content);
+        if (FixtureWrites.SYNCHRONOUS == fixtureWrites) {
+            store.sync(Collections.singletonList(location));
+        }
+        statistics.recordDiskWrite(System.nanoTime() - started);
+        ignoreChangesTo(location);
+        if (boundedResidency) {
+            keepResident(location, content);
+        } else {
+            index(new CacheEntry(location, content));
+        }
+    }
 
-        String safeFileName = escapeFileName(filename);
-        File file = new File(rootDirectory + safeFileName + "-" + new Date().getTime() + ".json");
-        if (!file.exists()) {
-           file.createNewFile();
+    /**
+     * Swaps the entry for a recording that was waiting to be written for one that knows where it is stored. Does nothing
+     * if a newer recording of the same request has replaced it meanwhile.
+     */
+    private void saved(CacheEntry pending, String location) {
+        ignoreChangesTo(location);
+        CachedResponse response = pending.getResponse();
+        CacheEntry entry = boundedResidency
+                ? new CacheEntry(location, pending.getMatchKey(), pending.getTimeCreatedUtcMillis())
+                : new CacheEntry(location, response);
+        if (boundedResidency) {
+            statistics.recordResident(weigh(entry, response));
+            residentResponses.put(entry, response);
+        }
+        if (cache.replace(pending.getMatchKey(), pending, entry)) {
+            holdInMemory(entry);
+            release(pending);
+        } else {
+            residentResponses.invalidate(entry);
         }
-        FileWriter fileWriter = new FileWriter(file);
+    }
 
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        gsonBuilder.registerTypeAdapter(HttpEntity.class, new JsonSerializer<HttpEntity>() {
-            @Override
-            public JsonElement serialize(HttpEntity src, Type typeOfSrc, JsonSerializationContext context) {
-                try {
-                    return new JsonPrimitive(new String(IOUtils.toByteArray(content.getRequestToProxy().getBody().getContent())));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    /**
+     * Stops the watcher reading back a fixture the cache has just written itself.
+     */
+    private void ignoreChangesTo(String location) {
+        if (watcher != null) {
+            ownWrites.add(location);
+        }
+    }
+
+    /**
+     * Applies changes made to the fixtures on disk to the index.
+     * <p>
+     *     Changed fixtures are read in full first. Only then are the entries for changed and deleted fixtures dropped and
+     *     the new ones indexed, so a request that is being re-recorded is never missing from the index in between.
+     * </p>
+     * @param changed The locations of the fixtures that were added or changed.
+     * @param deleted The locations of the fixtures that were deleted.
+     * @param complete Whether changed lists every fixture on disk, so anything indexed that isn't listed has been deleted.
+     */
+    void reload(Set<String> changed, Set<String> deleted, boolean complete) {
+        List<CacheEntry> reloaded = new ArrayList<CacheEntry>();
+        Set<String> reloadedKeys = new HashSet<String>();
+        Set<String> stale = new HashSet<String>(deleted);
+        for (String location : changed) {
+            if (ownWrites.remove(location) && !complete) {
+                continue;
+            }
+            try {
+                CachedResponse response = store.read(location);
+                reloaded.add(new CacheEntry(location, response));
+                reloadedKeys.add(response.getRequestToProxy().getMatchKey());
+                stale.add(location);
+            } catch (IOException e) {
+                LOG.warn("Unable to reload cached response from " + location + ", keeping what was there before", e);
+            }
+        }
+
+        int removed = 0;
+        for (CacheEntry entry : cache.values()) {
+            String location = entry.getLocation();
+            boolean gone = location != null && (stale.contains(location) || (complete && !changed.contains(location)));
+            if (gone && !reloadedKeys.contains(entry.getMatchKey()) && cache.remove(entry.getMatchKey(), entry)) {
+                statistics.recordCachedResponses(-1);
+                release(entry);
+                removed++;
+            }
+        }
+        for (CacheEntry entry : reloaded) {
+            if (boundedResidency) {
+                keepResident(entry.getLocation(), entry.getResponse());
+            } else {
+                index(entry);
+            }
+        }
+        statistics.recordFixturesReloaded(reloaded.size(), removed);
+        LOG.info("Reloaded " + reloaded.size() + " and removed " + removed + " cached responses changed on disk");
+    }
+
+    /**
+     * Removes superseded and expired recordings from disk.
+     * <p>
+     *     Only the newest recording of each request is kept, and it is removed too once it has outlived the time to live,
+     *     unless expired responses are still being served. Recordings written while compacting are always kept.
+     * </p>
+     * @return How many bytes of disk space were reclaimed.
+     * @throws IOException
+     */
+    public synchronized long compact() throws IOException {
+        long started = System.nanoTime();
+        List<CacheEntry> onDisk = store.summarise(new ArrayList<String>());
+        Map<String, CacheEntry> newest = new HashMap<String, CacheEntry>();
+        Set<String> obsolete = new HashSet<String>();
+        for (CacheEntry entry : onDisk) {
+            CacheEntry existing = newest.get(entry.getMatchKey());
+            if (existing == null || compareRecordings(existing, entry) <= 0) {
+                newest.put(entry.getMatchKey(), entry);
+                if (existing != null) {
+                    obsolete.add(existing.getLocation());
                 }
+            } else {
+                obsolete.add(entry.getLocation());
             }
-        });
-        Gson gson = gsonBuilder.create();
-        fileWriter.write(gson.toJson(content));
-        fileWriter.flush();
-        fileWriter.close();
+        }
+        if (!keepExpiredFixtures) {
+            for (CacheEntry entry : newest.values()) {
+                if (hasExpired(entry.getTimeCreatedUtcMillis())) {
+                    obsolete.add(entry.getLocation());
+                }
+            }
+        }
+        if (obsolete.isEmpty()) {
+            return 0;
+        }
 
-        cache.put(file.getName(), content);
+        for (CacheEntry entry : cache.values()) {
+            if (entry.getLocation() != null && obsolete.contains(entry.getLocation()) && cache.remove(entry.getMatchKey(), entry)) {
+                statistics.recordCachedResponses(-1);
+                release(entry);
+            }
+        }
+        Map<String, String> moved = new HashMap<String, String>();
+        long reclaimed = store.compact(obsolete, moved);
+        relocate(moved);
 
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        statistics.recordCompaction(obsolete.size(), reclaimed);
+        LOG.info("Compacted the cached responses in " + rootDirectory + " in " + elapsedMillis + "ms. Removed " + obsolete.size()
+                + " superseded or expired, reclaiming " + reclaimed + " bytes");
+        return reclaimed;
     }
 
-    private String escapeFileName(String filename) {
+    /**
+     * Points the index at where compaction moved each response to.
+     */
+    private void relocate(Map<String, String> moved) throws IOException {
+        if (moved.isEmpty()) {
+            return;
+        }
+        for (CacheEntry entry : cache.values()) {
+            String location = moved.get(entry.getLocation());
+            if (location == null) {
+                continue;
+            }
+            CacheEntry relocated = entry.getResponse() != null
+                    ? new CacheEntry(location, store.read(location))
+                    : new CacheEntry(location, entry.getMatchKey(), entry.getTimeCreatedUtcMillis());
+            if (cache.replace(entry.getMatchKey(), entry, relocated)) {
+                holdInMemory(relocated);
+                release(entry);
+            }
+        }
+    }
 
-        return filename.replace("/", "-").replace("?", "+").replace("&", "+");
+    /**
+     * Writes any recordings still waiting to be written and waits until they are on disk. Does nothing unless writing behind.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Indexes a response that is only held in memory until it is evicted.
+     */
+    private void keepResident(String location, CachedResponse response) {
+        CacheEntry entry = new CacheEntry(location, response.getRequestToProxy().getMatchKey(), response.getTimeCreatedUtcMillis());
+        statistics.recordResident(weigh(entry, response));
+        residentResponses.put(entry, response);
+        index(entry);
     }
 
     /**
@@ -151,25 +553,84 @@ class FileBasedCache {
      * @return The cached response. Null if not present.
      */
     public CachedResponse get(RequestToProxy requestToProxy) {
-        CachedResponse responseToReturn = null;
-        for (CachedResponse response : cache.values()) {
-            if (response.getRequestToProxy().toString().equals(requestToProxy.toString())) {
-                responseToReturn = response;
-                break;
-            }
+        CacheEntry entry = cache.get(requestToProxy.getMatchKey());
+        if (entry != null && !hasExpired(entry.getTimeCreatedUtcMillis())) {
+            return load(entry);
         }
-        if (responseToReturn != null && hasNotExpired(responseToReturn)) {
-            return responseToReturn;
+        return null;
+    }
+
+    /**
+     * Returns the cached entry even if it has outlived the time to live. Returns null for a cache miss.
+     * @param requestToProxy The request being proxied.
+     * @return The cached response. Null if not present.
+     */
+    public CachedResponse getEvenIfExpired(RequestToProxy requestToProxy) {
+        CacheEntry entry = cache.get(requestToProxy.getMatchKey());
+        if (entry != null) {
+            return load(entry);
         }
         return null;
     }
 
-    private boolean hasNotExpired(CachedResponse responseToReturn) {
-        return (responseToReturn.getTimeCreatedUtcMillis() + (timeToLiveInSeconds * 1000)) > new Date().getTime();
+    /**
+     * @param response A response returned by the cache.
+     * @return Whether the response has outlived the time to live.
+     */
+    public boolean hasExpired(CachedResponse response) {
+        return hasExpired(response.getTimeCreatedUtcMillis());
+    }
+
+    /**
+     * @return The response for the entry, read from disk if it isn't held in memory. Null if it can no longer be read.
+     */
+    private CachedResponse load(CacheEntry entry) {
+        if (entry.getResponse() != null) {
+            return entry.getResponse();
+        }
+        try {
+            return residentResponses.get(entry);
+        } catch (ExecutionException e) {
+            LOG.warn("Unable to read cached response from " + entry.getLocation() + ", treating it as a miss", e.getCause());
+        } catch (UncheckedExecutionException e) {
+            LOG.warn("Unable to read cached response from " + entry.getLocation() + ", treating it as a miss", e.getCause());
+        }
+        if (cache.remove(entry.getMatchKey(), entry)) {
+            statistics.recordCachedResponses(-1);
+        }
+        return null;
+    }
+
+    private boolean hasExpired(long timeCreatedUtcMillis) {
+        return (timeCreatedUtcMillis + (timeToLiveInSeconds * 1000)) <= new Date().getTime();
     }
 
     /**
-     * Empties the cache.
+     * Writes any recordings still waiting to be written, then releases the files held open by the cache.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for compaction to finish");
+            }
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (writer != null) {
+            writer.close();
+        }
+        store.close();
+    }
+
+    /**
+     * Empties the cache, including the cache of every ProxyRoute.
      * @param rootDirectory The directory storing the cached responses.
      */
     public static void reset(String rootDirectory) {
@@ -183,5 +644,9 @@ class FileBasedCache {
             }
             file.delete();
         }
+        for (File shard : JsonFixtureStore.shards(directory)) {
+            FileUtils.deleteQuietly(shard);
+        }
+        FileUtils.deleteQuietly(new File(directory, ROUTES_DIRECTORY));
     }
 }
@@ -0,0 +1,69 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Copies recorded responses from one FixtureStorage layout to another, eg. to move checked in JSON fixtures into a mapped
+ * segment, or from the flat JSON layout into the sharded one.
+ * <p>
+ *     Usage: <code>FixtureConverter &lt;storage&gt; &lt;source directory&gt; &lt;storage&gt; &lt;target directory&gt;</code>,
+ *     where storage is JSON_FILES, MAPPED_SEGMENT or SHARDED_JSON_FILES.
+ * </p>
+ * <p>Responses are copied oldest first, so where the target keeps one recording per request the newest one is kept.</p>
+ */
+public class FixtureConverter {
+
+    /**
+     * Runs the conversion from the command line.
+     * @param args The source storage and directory followed by the target storage and directory.
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: FixtureConverter <JSON_FILES|MAPPED_SEGMENT|SHARDED_JSON_FILES> <source directory> <JSON_FILES|MAPPED_SEGMENT|SHARDED_JSON_FILES> <target directory>");
+            System.exit(1);
+        }
+        int converted = convert(FixtureStorage.valueOf(args[0]), args[1], FixtureStorage.valueOf(args[2]), args[3]);
+        System.out.println("Converted " + converted + " recorded responses.");
+    }
+
+    /**
+     * Copies every recorded response from the source to the target. The source is left untouched.
+     * @param sourceStorage How the source directory stores its responses.
+     * @param sourceDirectory The directory to copy from.
+     * @param targetStorage How the target directory should store its responses.
+     * @param targetDirectory The directory to copy to.
+     * @return The number of responses copied.
+     * @throws IOException
+     */
+    public static int convert(FixtureStorage sourceStorage, String sourceDirectory, FixtureStorage targetStorage, String targetDirectory) throws IOException {
+        int loadingThreads = Runtime.getRuntime().availableProcessors();
+        FixtureStore source = FileBasedCache.createStore(sourceStorage, FileBasedCache.resolveCacheDirectory(sourceDirectory), loadingThreads);
+        FixtureStore target = FileBasedCache.createStore(targetStorage, FileBasedCache.resolveCacheDirectory(targetDirectory), loadingThreads);
+        try {
+            List<String> unreadable = new ArrayList<String>();
+            List<CacheEntry> entries = source.readAll(unreadable);
+            if (!unreadable.isEmpty()) {
+                throw new IOException("Unable to read " + unreadable.size() + " recorded responses from " + sourceDirectory + ": " + unreadable);
+            }
+            Collections.sort(entries, new Comparator<CacheEntry>() {
+                @Override
+                public int compare(CacheEntry o1, CacheEntry o2) {
+                    return Long.valueOf(o1.getTimeCreatedUtcMillis()).compareTo(o2.getTimeCreatedUtcMillis());
+                }
+            });
+            for (CacheEntry entry : entries) {
+                target.write(entry.getResponse().getRequestToProxy().getRequestPath(), entry.getResponse());
+            }
+            return entries.size();
+        } finally {
+            source.close();
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+/**
+ * How recorded responses are stored on disk.
+ */
+public enum FixtureStorage {
+
+    /**
+     * One JSON file per recorded response.
+     */
+    JSON_FILES,
+
+    /**
+     * Every recorded response is appended to a single segment file with an index. Bodies are replayed straight from a memory mapping of the segment.
+     * <p>Use FixtureConverter to move fixtures between this layout and JSON_FILES.</p>
+     */
+    MAPPED_SEGMENT,
+
+    /**
+     * One JSON file per recorded request, named after a hash of its match key and kept in nested directories. Recording
+     * a request again replaces its file rather than adding another, and directories stay small however many fixtures there are.
+     * <p>Use FixtureConverter to move fixtures from JSON_FILES into this layout.</p>
+     */
+    SHARDED_JSON_FILES;
+}
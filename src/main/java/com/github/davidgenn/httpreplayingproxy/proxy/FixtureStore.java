@@ -0,0 +1,63 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where a FileBasedCache keeps its recorded responses on disk.
+ */
+interface FixtureStore extends Closeable {
+
+    /**
+     * Reads every recorded response.
+     * @param unreadable Collects the location of each recorded response that couldn't be read. These are skipped rather than failing the whole read.
+     * @return An entry holding each recorded response, in no particular order.
+     * @throws IOException
+     */
+    List<CacheEntry> readAll(Collection<String> unreadable) throws IOException;
+
+    /**
+     * Lists every recorded response without reading the bodies into memory.
+     * @param unreadable Collects the location of each recorded response that couldn't be read. These are skipped rather than failing the whole read.
+     * @return An entry for each recorded response, in no particular order. The responses themselves are not loaded.
+     * @throws IOException
+     */
+    List<CacheEntry> summarise(Collection<String> unreadable) throws IOException;
+
+    /**
+     * Reads one recorded response.
+     * @param location Where the response is stored, as given by a CacheEntry.
+     * @return The recorded response.
+     * @throws IOException
+     */
+    CachedResponse read(String location) throws IOException;
+
+    /**
+     * Records a response.
+     * @param filename A name for the recording, usually the request path.
+     * @param response The response to record.
+     * @return Where the response is stored.
+     * @throws IOException
+     */
+    String write(String filename, CachedResponse response) throws IOException;
+
+    /**
+     * Forces recorded responses onto the disk, so they survive a crash.
+     * @param locations Where the responses are stored, as returned by write.
+     * @throws IOException
+     */
+    void sync(Collection<String> locations) throws IOException;
+
+    /**
+     * Removes recorded responses that are no longer wanted and gives the disk space they took up back.
+     * @param obsolete Where the responses to remove are stored. Every other response is kept, including any written while compacting.
+     * @param moved Collects the old and new location of each kept response that had to move.
+     * @return How many bytes of disk space were reclaimed.
+     * @throws IOException
+     */
+    long compact(Set<String> obsolete, Map<String, String> moved) throws IOException;
+}
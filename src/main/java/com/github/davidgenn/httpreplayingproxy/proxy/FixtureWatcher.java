@@ -0,0 +1,244 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory of JSON fixtures and reports the files that are added, changed or deleted.
+ * <p>
+ *     Changes are reported in batches. A batch is only reported once the directory has been quiet for the debounce
+ *     interval, so a git checkout touching thousands of files is reported once rather than file by file. A busy directory
+ *     is still reported at least every ten debounce intervals.
+ * </p>
+ * <p>
+ *     If the operating system drops events, the next batch lists every fixture on disk and says it is complete, so the
+ *     listener can work out what was deleted.
+ * </p>
+ */
+class FixtureWatcher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FixtureWatcher.class);
+
+    private static final String FIXTURE_EXTENSION = ".json";
+    private static final int MAX_DEBOUNCES_PER_BATCH = 10;
+
+    /**
+     * Told about each batch of changes.
+     */
+    interface Listener {
+
+        /**
+         * @param changed The location of each fixture that was added or changed, relative to the watched directory.
+         * @param deleted The location of each fixture that was deleted, relative to the watched directory.
+         * @param complete Whether changed lists every fixture on disk because events were lost. Anything not listed has gone.
+         */
+        void fixturesChanged(Set<String> changed, Set<String> deleted, boolean complete);
+    }
+
+    private final Path root;
+    private final int depth;
+    private final Listener listener;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+    private final Thread thread;
+
+    /**
+     * Creates a FixtureWatcher and starts its thread.
+     * @param directory The directory to watch.
+     * @param depth How many levels of directories below it hold fixtures. 0 when they are all in the directory itself.
+     * @param listener Told about each batch of changes.
+     * @param debounceMillis How long the directory must be quiet before a batch of changes is reported.
+     * @throws IOException
+     */
+    public FixtureWatcher(File directory, int depth, Listener listener, long debounceMillis) throws IOException {
+        this.root = directory.toPath().toAbsolutePath();
+        this.depth = depth;
+        this.listener = listener;
+        this.debounceMillis = debounceMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        watch(root, new LinkedHashSet<String>());
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchUntilClosed();
+            }
+        }, "httpreplayingproxy-fixture-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the fixture watcher to stop");
+        }
+    }
+
+    private void watchUntilClosed() {
+        try {
+            while (true) {
+                Set<String> touched = new LinkedHashSet<String>();
+                boolean overflowed = collect(watchService.take(), touched);
+                int debounces = 1;
+                WatchKey key;
+                while (debounces++ < MAX_DEBOUNCES_PER_BATCH && (key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    overflowed |= collect(key, touched);
+                }
+                report(touched, overflowed);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed.
+        } catch (InterruptedException e) {
+            // Nothing else interrupts this thread.
+        }
+    }
+
+    /**
+     * Tells the listener about the fixtures touched in a batch, now that the directory has settled down.
+     */
+    private void report(Set<String> touched, boolean overflowed) {
+        Set<String> changed = new LinkedHashSet<String>();
+        Set<String> deleted = new LinkedHashSet<String>();
+        if (overflowed) {
+            LOG.warn("Missed some changes to the fixtures in " + root + ", checking every fixture");
+            listFixtures(root, changed);
+        } else {
+            for (String location : touched) {
+                File file = root.resolve(location).toFile();
+                if (!file.isFile()) {
+                    deleted.add(location);
+                } else if (file.length() > 0) {
+                    changed.add(location);
+                }
+                // An empty file is still being written. It will be touched again once it has been.
+            }
+        }
+        if (changed.isEmpty() && deleted.isEmpty() && !overflowed) {
+            return;
+        }
+        try {
+            listener.fixturesChanged(changed, deleted, overflowed);
+        } catch (RuntimeException e) {
+            LOG.error("Unable to apply changes to the fixtures in " + root, e);
+        }
+    }
+
+    /**
+     * Adds the fixtures named by the key's events to touched and watches any new directories.
+     * @return Whether any events were lost.
+     */
+    private boolean collect(WatchKey key, Set<String> touched) {
+        boolean overflowed = false;
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflowed = true;
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path) && levelOf(path) <= depth) {
+                try {
+                    watch(path, touched);
+                } catch (IOException e) {
+                    LOG.warn("Unable to watch " + path + ", restart to pick up the fixtures in it", e);
+                }
+            } else if (isFixture(path)) {
+                touched.add(location(path));
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+        return overflowed;
+    }
+
+    /**
+     * Watches a directory and the directories below it that can hold fixtures. Fixtures already in them, which may have
+     * been written before the watch started, are added to touched.
+     */
+    private void watch(Path directory, Set<String> touched) throws IOException {
+        WatchKey key = directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watchedDirectories.put(key, directory);
+        File[] files = directory.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory() && levelOf(file.toPath()) <= depth) {
+                watch(file.toPath(), touched);
+            } else if (isFixture(file.toPath())) {
+                touched.add(location(file.toPath()));
+            }
+        }
+    }
+
+    private void listFixtures(Path directory, Set<String> fixtures) {
+        File[] files = directory.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory() && levelOf(file.toPath()) <= depth) {
+                listFixtures(file.toPath(), fixtures);
+            } else if (isFixture(file.toPath())) {
+                fixtures.add(location(file.toPath()));
+            }
+        }
+    }
+
+    /**
+     * @return How many names below the watched directory the path is. Fixtures are at depth + 1.
+     */
+    private int levelOf(Path path) {
+        return path.equals(root) ? 0 : root.relativize(path).getNameCount();
+    }
+
+    private boolean isFixture(Path path) {
+        return path.getFileName().toString().endsWith(FIXTURE_EXTENSION) && levelOf(path) == depth + 1 && !Files.isDirectory(path);
+    }
+
+    /**
+     * @return The location of the fixture as the JsonFixtureStore knows it, relative to the watched directory and separated with '/'.
+     */
+    private String location(Path path) {
+        StringBuilder location = new StringBuilder();
+        for (Path name : root.relativize(path)) {
+            if (location.length() > 0) {
+                location.append('/');
+            }
+            location.append(name.toString());
+        }
+        return location.toString();
+    }
+}
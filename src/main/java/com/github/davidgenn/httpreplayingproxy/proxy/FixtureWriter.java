@@ -0,0 +1,219 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes recorded responses to a FixtureStore on a background thread.
+ * <p>
+ *     Recordings wait in a bounded queue. Once every flush interval, or sooner if the queue fills up, the writer takes
+ *     everything waiting, writes it and forces the whole batch to disk at once. Callers that find the queue full wait for
+ *     room, so a slow disk holds back new recordings rather than filling the heap.
+ * </p>
+ */
+class FixtureWriter implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FixtureWriter.class);
+
+    /**
+     * Told about each recording once it is on disk.
+     */
+    interface Listener {
+
+        /**
+         * @param pending The entry given to {@link #write}.
+         * @param location Where the response is now stored.
+         */
+        void written(CacheEntry pending, String location);
+    }
+
+    private final FixtureStore store;
+    private final ProxyStatistics statistics;
+    private final Listener listener;
+    private final long flushIntervalMillis;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Thread thread;
+    private final Object lock = new Object();
+    private long queued; // guarded by lock
+    private long finished; // guarded by lock
+    private boolean flushRequested; // guarded by lock
+    private boolean closed; // guarded by lock
+
+    /**
+     * Creates a FixtureWriter and starts its thread.
+     * @param store Where to write the recordings.
+     * @param statistics Where to record what the writer has done.
+     * @param listener Told about each recording once it is on disk.
+     * @param flushIntervalMillis How long a recording may wait before it is written.
+     * @param maxPendingWrites How many recordings may wait before callers have to.
+     */
+    public FixtureWriter(FixtureStore store, ProxyStatistics statistics, Listener listener, long flushIntervalMillis, int maxPendingWrites) {
+        this.store = store;
+        this.statistics = statistics;
+        this.listener = listener;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.queue = new ArrayBlockingQueue<PendingWrite>(maxPendingWrites);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeUntilClosed();
+            }
+        }, "httpreplayingproxy-fixture-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a recording to be written. Waits for room if too many recordings are already waiting.
+     * @param filename A name for the recording, usually the request path.
+     * @param pending An entry holding the response.
+     * @throws IOException If the writer has been closed, or the caller is interrupted while waiting for room.
+     */
+    public void write(String filename, CacheEntry pending) throws IOException {
+        PendingWrite write = new PendingWrite(filename, pending);
+        synchronized (lock) {
+            // Queued while holding the lock, so the writer can't see the writer closed and the queue empty in between.
+            while (!closed && !queue.offer(write)) {
+                if (!flushRequested) {
+                    // Only the first caller to find the queue full wakes the writer, so callers don't keep waking each other.
+                    flushRequested = true;
+                    lock.notifyAll();
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting to record " + filename);
+                }
+            }
+            if (closed) {
+                throw new IOException("The fixture writer has been closed");
+            }
+            queued++;
+        }
+        statistics.recordWritesPending(1);
+    }
+
+    /**
+     * Writes everything queued so far without waiting for the flush interval, and waits until it is on disk.
+     * @throws IOException If interrupted while waiting.
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            long target = queued;
+            flushRequested = true;
+            lock.notifyAll();
+            while (finished < target) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for recordings to be written");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes everything still queued, then stops the writer's thread.
+     * @throws IOException If interrupted while waiting.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for recordings to be written");
+        }
+    }
+
+    private void writeUntilClosed() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        while (true) {
+            boolean closing;
+            synchronized (lock) {
+                if (!closed && !flushRequested && queue.remainingCapacity() > 0) {
+                    try {
+                        lock.wait(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        // Nothing else interrupts this thread. Write what's waiting and carry on.
+                    }
+                }
+                closing = closed;
+                flushRequested = false;
+                queue.drainTo(batch);
+                // Callers waiting for room can queue again.
+                lock.notifyAll();
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+            if (closing) {
+                synchronized (lock) {
+                    if (queue.isEmpty()) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        List<String> locations = new ArrayList<String>(batch.size());
+        List<PendingWrite> written = new ArrayList<PendingWrite>(batch.size());
+        for (PendingWrite write : batch) {
+            long started = System.nanoTime();
+            try {
+                locations.add(store.write(write.filename, write.pending.getResponse()));
+                written.add(write);
+            } catch (Exception e) {
+                statistics.recordFailedWrite();
+                LOG.error("Unable to write cached response for " + write.filename + ". It is only held in memory and won't survive a restart.", e);
+            }
+            statistics.recordDiskWrite(System.nanoTime() - started);
+        }
+        try {
+            store.sync(locations);
+        } catch (IOException e) {
+            LOG.warn("Unable to force " + locations.size() + " cached responses to disk", e);
+        }
+        for (int i = 0; i < written.size(); i++) {
+            try {
+                listener.written(written.get(i).pending, locations.get(i));
+            } catch (RuntimeException e) {
+                LOG.error("Unable to index the cached response written for " + written.get(i).filename + " to " + locations.get(i), e);
+            }
+        }
+        statistics.recordWritesPending(-batch.size());
+        statistics.recordWriteBatch();
+        synchronized (lock) {
+            finished += batch.size();
+            lock.notifyAll();
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final String filename;
+        private final CacheEntry pending;
+
+        private PendingWrite(String filename, CacheEntry pending) {
+            this.filename = filename;
+            this.pending = pending;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+/**
+ * When newly recorded responses are written to disk.
+ */
+public enum FixtureWrites {
+
+    /**
+     * Written on the request thread before the response is returned, leaving the operating system to decide when the
+     * file reaches the disk.
+     */
+    WRITE_THROUGH,
+
+    /**
+     * Held in memory and returned straight away. A background writer saves the pending recordings in batches, forcing
+     * each batch to disk, so a recording is lost only if the process dies within a flush interval of making it.
+     */
+    WRITE_BEHIND,
+
+    /**
+     * Written and forced to disk on the request thread before the response is returned. The slowest, but a recording
+     * that has been returned survives a crash.
+     */
+    SYNCHRONOUS;
+}
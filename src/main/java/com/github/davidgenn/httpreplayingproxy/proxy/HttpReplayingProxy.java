@@ -1,6 +1,13 @@
 package com.github.davidgenn.httpreplayingproxy.proxy;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The HttpReplayingProxy is a web app deployed in memory using Jetty.
@@ -11,6 +18,8 @@ import org.eclipse.jetty.server.Server;
 public class HttpReplayingProxy {
 	
 	private final HttpReplayingProxyConfiguration configuration;
+    private final ProxyStatistics statistics = new ProxyStatistics();
+    private ReplayingProxyHandler handler;
 
     /**
      * Create a new HttpReplayingProxy.
@@ -26,9 +35,59 @@ public class HttpReplayingProxy {
      * @throws Exception
      */
 	public Server start() throws Exception {
-		Server server = new Server(configuration.getPort());
-        server.setHandler(new ReplayingProxyHandler(configuration));
+		Server server;
+        if (configuration.shouldUseVirtualThreads()) {
+            server = new Server(virtualThreadPool());
+            // No acceptor threads: connections are accepted by the selector loops, which the pool keeps on platform threads.
+            ServerConnector connector = new ServerConnector(server, 0, -1);
+            connector.setPort(configuration.getPort());
+            server.addConnector(connector);
+        } else {
+            server = new Server(configuration.getPort());
+        }
+        handler = new ReplayingProxyHandler(configuration, statistics);
+        server.setHandler(handler);
         server.start();
         return server;
 	}
+
+    /**
+     * @return A thread pool that starts a new virtual thread for every task other than Jetty's selector loops.
+     * @throws IllegalStateException If this JVM doesn't support virtual threads.
+     */
+    static ThreadPool virtualThreadPool() {
+        // Looked up by reflection so that the library still builds and runs on older JVMs when virtual threads aren't used.
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return new VirtualThreadPool(executor);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later. This is Java " + System.getProperty("java.version") + ".", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to create virtual threads", e);
+        } catch (InvocationTargetException e) {
+            // Java 19 and 20 only have virtual threads as a preview feature.
+            throw new IllegalStateException("Virtual threads need Java 21 or later. This is Java " + System.getProperty("java.version") + ".", e.getCause());
+        }
+    }
+
+    /**
+     * Removes recorded responses superseded by a newer recording of the same request, and those past the time to live,
+     * from disk. Safe to call while the proxy is serving requests.
+     * @return How many bytes of disk space were reclaimed.
+     * @throws IOException
+     * @throws IllegalStateException If the proxy hasn't been started.
+     */
+    public long compactFixtures() throws IOException {
+        if (handler == null) {
+            throw new IllegalStateException("The proxy has to be started before its fixtures can be compacted");
+        }
+        return handler.compactFixtures();
+    }
+
+    /**
+     * @return What this proxy has done since it was created.
+     */
+    public ProxyStatistics getStatistics() {
+        return statistics;
+    }
 }
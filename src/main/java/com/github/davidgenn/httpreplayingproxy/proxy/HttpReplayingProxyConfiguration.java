@@ -1,5 +1,9 @@
 package com.github.davidgenn.httpreplayingproxy.proxy;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Configures the behaviour of a HttpReplayingProxy.
  */
@@ -10,6 +14,31 @@ public class HttpReplayingProxyConfiguration {
     private String cacheRootDirectory;
     private long timeToLiveSeconds = Long.MAX_VALUE / 2000; // will be multiplied by 1000 to turn into milliseconds.
     private MatchHeaders matchHeaders = MatchHeaders.MATCH_NAME_ONLY;
+    private MatchRules matchRules = new MatchRules();
+    private int maxUpstreamConnections = 50;
+    private int maxUpstreamConnectionsPerRoute = 50;
+    private int upstreamConnectTimeoutMillis = 10000;
+    private int upstreamSocketTimeoutMillis = 60000;
+    private long upstreamKeepAliveMillis = 30000;
+    private boolean coalesceConcurrentMisses = false;
+    private boolean streamResponses = false;
+    private FixtureStorage fixtureStorage = FixtureStorage.JSON_FILES;
+    private boolean loadFixturesLazily = false;
+    private boolean loadFixturesInParallel = false;
+    private long maxResidentResponses = 1000;
+    private long maxResidentBytes = 0; // no limit
+    private boolean handleMissesAsynchronously = false;
+    private boolean useVirtualThreads = false;
+    private FixtureWrites fixtureWrites = FixtureWrites.WRITE_THROUGH;
+    private long writeBehindFlushIntervalMillis = 1000;
+    private int maxPendingWrites = 10000;
+    private boolean compressFixtures = false;
+    private boolean watchFixtures = false;
+    private long watchDebounceMillis = 500;
+    private boolean serveStaleWhileRevalidating = false;
+    private int maxConcurrentRefreshes = 4;
+    private long compactFixturesEveryMillis = 0;
+    private final List<ProxyRoute> routes = new ArrayList<ProxyRoute>();
 
     /**
      * @param urlToProxyTo The 'real' url to proxy calls to.
@@ -20,6 +49,16 @@ public class HttpReplayingProxyConfiguration {
 		return this;
 	}
 
+    /**
+     * @param route Another 'real' service to proxy the calls that match the route to. Calls that match no route are
+     *              proxied to urlToProxyTo, if it is set.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration withRoute(ProxyRoute route) {
+        this.routes.add(route);
+        return this;
+    }
+
     /**
      * @param port The port the HttpReplayingProxy should listen on.
      * @return The HttpReplayingProxyConfiguration.
@@ -47,6 +86,53 @@ public class HttpReplayingProxyConfiguration {
         return this;
     }
 
+    /**
+     * @param fixtureStorage How the cached responses should be stored on disk.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration withFixtureStorage(FixtureStorage fixtureStorage) {
+        this.fixtureStorage = fixtureStorage;
+        return this;
+    }
+
+    /**
+     * @param loadFixturesLazily Whether cached responses should only be read from disk the first time they are asked for, rather than all at startup.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration loadFixturesLazily(boolean loadFixturesLazily) {
+        this.loadFixturesLazily = loadFixturesLazily;
+        return this;
+    }
+
+    /**
+     * @param loadFixturesInParallel Whether cached responses read at startup should be read and decoded on every core, rather than one at a time.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration loadFixturesInParallel(boolean loadFixturesInParallel) {
+        this.loadFixturesInParallel = loadFixturesInParallel;
+        return this;
+    }
+
+    /**
+     * @param maxResidentResponses When loading lazily, how many of the most recently used cached responses are kept in memory.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration maxResidentResponses(long maxResidentResponses) {
+        this.maxResidentResponses = maxResidentResponses;
+        return this;
+    }
+
+    /**
+     * @param maxResidentBytes The most memory, in bytes of body and metadata, that cached responses may take up. The least
+     *                         recently used responses beyond this are dropped from memory and read from disk again when
+     *                         next asked for. Zero means no limit. When set, this replaces maxResidentResponses.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration maxResidentBytes(long maxResidentBytes) {
+        this.maxResidentBytes = maxResidentBytes;
+        return this;
+    }
+
     /**
      * @param matchHeaders How headers should be treated when looking for a previously cached response.
      * @return The HttpReplayingProxyConfiguration.
@@ -56,6 +142,185 @@ public class HttpReplayingProxyConfiguration {
         return this;
     }
 
+    /**
+     * @param matchRules What else should be ignored, or put into a standard form, when looking for a previously cached
+     *                   response: query parameters, JSON body fields and particular headers.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration withMatchRules(MatchRules matchRules) {
+        this.matchRules = matchRules;
+        return this;
+    }
+
+    /**
+     * @param maxUpstreamConnections The maximum number of pooled connections to the 'real' service.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration maxUpstreamConnections(int maxUpstreamConnections) {
+        this.maxUpstreamConnections = maxUpstreamConnections;
+        return this;
+    }
+
+    /**
+     * @param maxUpstreamConnectionsPerRoute The maximum number of pooled connections to a single host of the 'real' service.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration maxUpstreamConnectionsPerRoute(int maxUpstreamConnectionsPerRoute) {
+        this.maxUpstreamConnectionsPerRoute = maxUpstreamConnectionsPerRoute;
+        return this;
+    }
+
+    /**
+     * @param upstreamConnectTimeoutMillis How long to wait for a connection to the 'real' service. Zero means wait forever.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration upstreamConnectTimeoutMillis(int upstreamConnectTimeoutMillis) {
+        this.upstreamConnectTimeoutMillis = upstreamConnectTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param upstreamSocketTimeoutMillis How long to wait for data from the 'real' service. Zero means wait forever.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration upstreamSocketTimeoutMillis(int upstreamSocketTimeoutMillis) {
+        this.upstreamSocketTimeoutMillis = upstreamSocketTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param upstreamKeepAliveMillis How long an idle connection to the 'real' service is kept open when the service doesn't say.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration upstreamKeepAliveMillis(long upstreamKeepAliveMillis) {
+        this.upstreamKeepAliveMillis = upstreamKeepAliveMillis;
+        return this;
+    }
+
+    /**
+     * @param coalesceConcurrentMisses Whether concurrent cache misses for the same request should share a single call to the 'real' service.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration coalesceConcurrentMisses(boolean coalesceConcurrentMisses) {
+        this.coalesceConcurrentMisses = coalesceConcurrentMisses;
+        return this;
+    }
+
+    /**
+     * @param streamResponses Whether responses from the 'real' service should be relayed to the client as they arrive, rather than read in full first.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration streamResponses(boolean streamResponses) {
+        this.streamResponses = streamResponses;
+        return this;
+    }
+
+    /**
+     * @param handleMissesAsynchronously Whether cache misses should be passed on to the 'real' service without holding a
+     *                                   server thread while waiting for it. Responses are always read in full first when
+     *                                   set, so streamResponses has no effect.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration handleMissesAsynchronously(boolean handleMissesAsynchronously) {
+        this.handleMissesAsynchronously = handleMissesAsynchronously;
+        return this;
+    }
+
+    /**
+     * @param useVirtualThreads Whether requests should be handled on virtual threads, one per request, rather than on a
+     *                          bounded pool of threads. Needs Java 21 or later.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration useVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+
+    /**
+     * @param fixtureWrites When newly recorded responses should be written to disk.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration withFixtureWrites(FixtureWrites fixtureWrites) {
+        this.fixtureWrites = fixtureWrites;
+        return this;
+    }
+
+    /**
+     * @param writeBehindFlushIntervalMillis When writing behind, the longest a recorded response waits in memory before it is written to disk.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration writeBehindFlushIntervalMillis(long writeBehindFlushIntervalMillis) {
+        this.writeBehindFlushIntervalMillis = writeBehindFlushIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @param maxPendingWrites When writing behind, how many recorded responses may wait to be written before new recordings
+     *                         have to wait for room.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration maxPendingWrites(int maxPendingWrites) {
+        this.maxPendingWrites = maxPendingWrites;
+        return this;
+    }
+
+    /**
+     * @param compressFixtures Whether newly recorded response bodies should be gzipped, both on disk and in memory. Gzipped
+     *                         bodies are replayed as they are to clients that accept gzip.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration compressFixtures(boolean compressFixtures) {
+        this.compressFixtures = compressFixtures;
+        return this;
+    }
+
+    /**
+     * @param watchFixtures Whether fixtures added, edited or deleted on disk while running should be picked up without a
+     *                      restart. Only JSON_FILES and SHARDED_JSON_FILES storage can be watched.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration watchFixtures(boolean watchFixtures) {
+        this.watchFixtures = watchFixtures;
+        return this;
+    }
+
+    /**
+     * @param watchDebounceMillis When watching, how long the fixtures must go unchanged before a batch of changes is picked up.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration watchDebounceMillis(long watchDebounceMillis) {
+        this.watchDebounceMillis = watchDebounceMillis;
+        return this;
+    }
+
+    /**
+     * @param serveStaleWhileRevalidating Whether a response that has outlived the time to live should still be replayed
+     *                                    straight away while a fresh one is fetched from the 'real' service in the background.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration serveStaleWhileRevalidating(boolean serveStaleWhileRevalidating) {
+        this.serveStaleWhileRevalidating = serveStaleWhileRevalidating;
+        return this;
+    }
+
+    /**
+     * @param maxConcurrentRefreshes When serving stale responses, how many fresh responses may be fetched from the 'real' service at once.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration maxConcurrentRefreshes(int maxConcurrentRefreshes) {
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+        return this;
+    }
+
+    /**
+     * @param compactFixturesEveryMillis How often superseded and expired fixtures should be removed from disk. 0, the default, never does.
+     * @return The HttpReplayingProxyConfiguration.
+     */
+    public HttpReplayingProxyConfiguration compactFixturesEveryMillis(long compactFixturesEveryMillis) {
+        this.compactFixturesEveryMillis = compactFixturesEveryMillis;
+        return this;
+    }
+
     /**
      * @return The url being proxied.
      */
@@ -63,6 +328,13 @@ public class HttpReplayingProxyConfiguration {
 		return proxyUrl;
 	}
 
+    /**
+     * @return The routes to other 'real' services, in the order they were added.
+     */
+    public List<ProxyRoute> getRoutes() {
+        return Collections.unmodifiableList(routes);
+    }
+
     /**
      * @return The port the HttpReplayingProxy is listening on.
      */
@@ -77,6 +349,41 @@ public class HttpReplayingProxyConfiguration {
         return cacheRootDirectory;
     }
 
+    /**
+     * @return How the cached responses should be stored on disk.
+     */
+    public FixtureStorage getFixtureStorage() {
+        return fixtureStorage;
+    }
+
+    /**
+     * @return Whether cached responses should only be read from disk the first time they are asked for, rather than all at startup.
+     */
+    public boolean shouldLoadFixturesLazily() {
+        return loadFixturesLazily;
+    }
+
+    /**
+     * @return Whether cached responses read at startup should be read and decoded on every core, rather than one at a time.
+     */
+    public boolean shouldLoadFixturesInParallel() {
+        return loadFixturesInParallel;
+    }
+
+    /**
+     * @return When loading lazily, how many of the most recently used cached responses are kept in memory.
+     */
+    public long getMaxResidentResponses() {
+        return maxResidentResponses;
+    }
+
+    /**
+     * @return The most memory, in bytes of body and metadata, that cached responses may take up. Zero means no limit.
+     */
+    public long getMaxResidentBytes() {
+        return maxResidentBytes;
+    }
+
     /**
      * @return The time to live for the cache in seconds.
      */
@@ -90,4 +397,137 @@ public class HttpReplayingProxyConfiguration {
     public MatchHeaders getMatchHeaders() {
         return matchHeaders;
     }
+
+    /**
+     * @return What else is ignored, or put into a standard form, when looking for a previously cached response.
+     */
+    public MatchRules getMatchRules() {
+        return matchRules;
+    }
+
+    /**
+     * @return The maximum number of pooled connections to the 'real' service.
+     */
+    public int getMaxUpstreamConnections() {
+        return maxUpstreamConnections;
+    }
+
+    /**
+     * @return The maximum number of pooled connections to a single host of the 'real' service.
+     */
+    public int getMaxUpstreamConnectionsPerRoute() {
+        return maxUpstreamConnectionsPerRoute;
+    }
+
+    /**
+     * @return How long to wait for a connection to the 'real' service.
+     */
+    public int getUpstreamConnectTimeoutMillis() {
+        return upstreamConnectTimeoutMillis;
+    }
+
+    /**
+     * @return How long to wait for data from the 'real' service.
+     */
+    public int getUpstreamSocketTimeoutMillis() {
+        return upstreamSocketTimeoutMillis;
+    }
+
+    /**
+     * @return How long an idle connection to the 'real' service is kept open when the service doesn't say.
+     */
+    public long getUpstreamKeepAliveMillis() {
+        return upstreamKeepAliveMillis;
+    }
+
+    /**
+     * @return Whether concurrent cache misses for the same request should share a single call to the 'real' service.
+     */
+    public boolean shouldCoalesceConcurrentMisses() {
+        return coalesceConcurrentMisses;
+    }
+
+    /**
+     * @return Whether responses from the 'real' service should be relayed to the client as they arrive, rather than read in full first.
+     */
+    public boolean shouldStreamResponses() {
+        return streamResponses;
+    }
+
+    /**
+     * @return Whether cache misses should be passed on to the 'real' service without holding a server thread while waiting for it.
+     */
+    public boolean shouldHandleMissesAsynchronously() {
+        return handleMissesAsynchronously;
+    }
+
+    /**
+     * @return Whether requests should be handled on virtual threads, one per request, rather than on a bounded pool of threads.
+     */
+    public boolean shouldUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * @return When newly recorded responses should be written to disk.
+     */
+    public FixtureWrites getFixtureWrites() {
+        return fixtureWrites;
+    }
+
+    /**
+     * @return When writing behind, the longest a recorded response waits in memory before it is written to disk.
+     */
+    public long getWriteBehindFlushIntervalMillis() {
+        return writeBehindFlushIntervalMillis;
+    }
+
+    /**
+     * @return When writing behind, how many recorded responses may wait to be written before new recordings have to wait for room.
+     */
+    public int getMaxPendingWrites() {
+        return maxPendingWrites;
+    }
+
+    /**
+     * @return Whether newly recorded response bodies should be gzipped, both on disk and in memory.
+     */
+    public boolean shouldCompressFixtures() {
+        return compressFixtures;
+    }
+
+    /**
+     * @return Whether fixtures added, edited or deleted on disk while running should be picked up without a restart.
+     */
+    public boolean shouldWatchFixtures() {
+        return watchFixtures;
+    }
+
+    /**
+     * @return When watching, how long the fixtures must go unchanged before a batch of changes is picked up.
+     */
+    public long getWatchDebounceMillis() {
+        return watchDebounceMillis;
+    }
+
+    /**
+     * @return Whether a response that has outlived the time to live is still replayed while a fresh one is fetched in the background.
+     */
+    public boolean shouldServeStaleWhileRevalidating() {
+        return serveStaleWhileRevalidating;
+    }
+
+    /**
+     * @return When serving stale responses, how many fresh responses may be fetched from the 'real' service at once.
+     */
+    public int getMaxConcurrentRefreshes() {
+        return maxConcurrentRefreshes;
+    }
+
+    /**
+     * @return How often superseded and expired fixtures are removed from disk. 0 if never.
+     */
+    public long getCompactFixturesEveryMillis() {
+        return compactFixturesEveryMillis;
+    }
 }
@@ -0,0 +1,553 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * Stores each recorded response in its own JSON file, named after the request path and the time it was recorded.
+ * <p>
+ *     When sharded, the file is instead named after a hash of the match key and kept two directories down, under the
+ *     first two pairs of hex digits of the hash, eg. {@code 3f/a2/3fa2...json}. Each request has one file, which a new
+ *     recording replaces in a single atomic rename, and no directory ever holds more than a few hundred entries.
+ * </p>
+ * <p>
+ *     Reading every fixture can be spread over several threads. Files are read and decoded in batches on a fork join pool.
+ * </p>
+ * <p>
+ *     The match key and recording time of every file are saved to a summary file alongside the fixtures, so the next
+ *     summarise only has to open files that have been added or changed since.
+ * </p>
+ */
+class JsonFixtureStore implements FixtureStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JsonFixtureStore.class);
+
+    static final String FIXTURE_CHARSET = "UTF-8";
+    private static final Charset REQUEST_BODY_CHARSET = Charset.forName(FIXTURE_CHARSET);
+    static final String SUMMARY_FILE = "fixtures.json.index";
+    private static final String FIXTURE_EXTENSION = ".json";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+    private static final Pattern SHARD_NAME = Pattern.compile("[0-9a-f]{2}");
+    private static final int FILES_PER_BATCH = 32;
+
+    private final File directory;
+    private final int loadingThreads;
+    private final boolean sharded;
+    private final CompiledMatchRules matchRules;
+    private final Gson gson;
+
+    /**
+     * Creates a JsonFixtureStore that keeps every file in the one directory.
+     * @param directory The directory holding the JSON files.
+     * @param loadingThreads How many threads to read the fixtures with in readAll.
+     */
+    public JsonFixtureStore(File directory, int loadingThreads) {
+        this(directory, loadingThreads, false);
+    }
+
+    /**
+     * Creates a JsonFixtureStore.
+     * @param directory The directory holding the JSON files.
+     * @param loadingThreads How many threads to read the fixtures with in readAll.
+     * @param sharded Whether each file is named after its match key and kept in nested directories.
+     */
+    public JsonFixtureStore(File directory, int loadingThreads, boolean sharded) {
+        this(directory, loadingThreads, sharded, CompiledMatchRules.NONE);
+    }
+
+    /**
+     * Creates a JsonFixtureStore whose responses are matched by rules.
+     * @param directory The directory holding the JSON files.
+     * @param loadingThreads How many threads to read the fixtures with in readAll.
+     * @param sharded Whether each file is named after its match key and kept in nested directories.
+     * @param matchRules The rules the requests read back are matched by.
+     */
+    JsonFixtureStore(File directory, int loadingThreads, boolean sharded, CompiledMatchRules matchRules) {
+        this.directory = directory;
+        this.loadingThreads = loadingThreads;
+        this.sharded = sharded;
+        this.matchRules = matchRules;
+        this.gson = createGson(matchRules);
+    }
+
+    @Override
+    public List<CacheEntry> readAll(Collection<String> unreadable) throws IOException {
+        List<File> files = fixtureFiles();
+        Collection<String> unreadableByAnyThread = Collections.synchronizedList(new ArrayList<String>());
+        List<CacheEntry> entries;
+        if (loadingThreads <= 1 || files.size() <= FILES_PER_BATCH) {
+            entries = readFixtures(files, unreadableByAnyThread);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(loadingThreads);
+            try {
+                entries = pool.invoke(new ReadFixtures(files, unreadableByAnyThread));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        unreadable.addAll(unreadableByAnyThread);
+        return entries;
+    }
+
+    private List<CacheEntry> readFixtures(List<File> files, Collection<String> unreadable) {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(files.size());
+        for (File file : files) {
+            try {
+                entries.add(new CacheEntry(location(file), read(location(file))));
+            } catch (IOException e) {
+                LOG.warn("Skipping unreadable cached response " + file, e);
+                unreadable.add(location(file));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a list of fixture files, splitting it in half until each part is small enough to read on one thread.
+     */
+    private class ReadFixtures extends RecursiveTask<List<CacheEntry>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final Collection<String> unreadable;
+
+        ReadFixtures(List<File> files, Collection<String> unreadable) {
+            this.files = files;
+            this.unreadable = unreadable;
+        }
+
+        @Override
+        protected List<CacheEntry> compute() {
+            if (files.size() <= FILES_PER_BATCH) {
+                return readFixtures(files, unreadable);
+            }
+            int middle = files.size() / 2;
+            ReadFixtures firstHalf = new ReadFixtures(files.subList(0, middle), unreadable);
+            ReadFixtures secondHalf = new ReadFixtures(files.subList(middle, files.size()), unreadable);
+            firstHalf.fork();
+            List<CacheEntry> entries = new ArrayList<CacheEntry>(secondHalf.compute());
+            entries.addAll(firstHalf.join());
+            return entries;
+        }
+    }
+
+    @Override
+    public List<CacheEntry> summarise(Collection<String> unreadable) throws IOException {
+        Map<String, FixtureSummary> previousSummaries = readSummaries();
+        List<FixtureSummary> summaries = new ArrayList<FixtureSummary>();
+        boolean changed = false;
+        for (File file : fixtureFiles()) {
+            String location = location(file);
+            FixtureSummary summary = previousSummaries.remove(location);
+            if (summary == null || summary.lastModified != file.lastModified() || summary.length != file.length()) {
+                changed = true;
+                try {
+                    CachedResponse response = readWithoutBody(file);
+                    summary = new FixtureSummary(location, file, response.getRequestToProxy().getMatchKey(), response.getTimeCreatedUtcMillis());
+                } catch (IOException e) {
+                    LOG.warn("Skipping unreadable cached response " + file, e);
+                    unreadable.add(location);
+                    continue;
+                }
+            }
+            summaries.add(summary);
+        }
+        if (changed || !previousSummaries.isEmpty()) {
+            writeSummaries(summaries);
+        }
+
+        List<CacheEntry> entries = new ArrayList<CacheEntry>();
+        for (FixtureSummary summary : summaries) {
+            entries.add(new CacheEntry(summary.file, summary.matchKey, summary.timeCreatedUtcMillis));
+        }
+        return entries;
+    }
+
+    @Override
+    public CachedResponse read(String location) throws IOException {
+        File file = new File(directory, location);
+        try {
+            CachedResponse response = gson.fromJson(FileUtils.readFileToString(file, FIXTURE_CHARSET), CachedResponse.class);
+            if (response == null) {
+                throw new IOException("No recorded response in " + file);
+            }
+            return response;
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to read recorded response from " + file, e);
+        }
+    }
+
+    @Override
+    public String write(String filename, CachedResponse response) throws IOException {
+        if (sharded) {
+            return writeSharded(response);
+        }
+        File file = createFixtureFile(filename, response.getTimeCreatedUtcMillis());
+        writeJson(file, response);
+        return file.getName();
+    }
+
+    /**
+     * Writes the response to a temporary file beside its shard file, then renames it over the shard file so readers
+     * only ever see a whole recording.
+     */
+    private String writeSharded(CachedResponse response) throws IOException {
+        String location = shardLocation(response.getRequestToProxy().getMatchKey());
+        File file = new File(directory, location);
+        File shard = file.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+            throw new IOException("Unable to create " + shard);
+        }
+        File temporaryFile = File.createTempFile(file.getName(), TEMPORARY_EXTENSION, shard);
+        try {
+            writeJson(temporaryFile, response);
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporaryFile.delete();
+        }
+        return location;
+    }
+
+    /**
+     * @return Where a recording of the request with the given match key is kept in the sharded layout, relative to the directory.
+     */
+    static String shardLocation(String matchKey) {
+        String hash = Hashing.sha1().hashString(matchKey, REQUEST_BODY_CHARSET).toString();
+        return hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash + FIXTURE_EXTENSION;
+    }
+
+    private void writeJson(File file, CachedResponse response) throws IOException {
+        Writer fileWriter = new OutputStreamWriter(new FileOutputStream(file), FIXTURE_CHARSET);
+        try {
+            fileWriter.write(gson.toJson(response));
+            fileWriter.flush();
+        } finally {
+            fileWriter.close();
+        }
+    }
+
+    /**
+     * @return Where the file is, relative to the directory. Always separated with '/' so the summary file can move between platforms.
+     */
+    private String location(File file) {
+        if (!sharded) {
+            return file.getName();
+        }
+        File shard = file.getParentFile();
+        return shard.getParentFile().getName() + "/" + shard.getName() + "/" + file.getName();
+    }
+
+    @Override
+    public void sync(Collection<String> locations) throws IOException {
+        if (locations.isEmpty()) {
+            return;
+        }
+        Set<File> directories = new HashSet<File>();
+        for (String location : locations) {
+            File file = new File(directory, location);
+            force(file.toPath(), StandardOpenOption.WRITE);
+            directories.add(file.getParentFile());
+        }
+        for (File parent : directories) {
+            try {
+                // The new names only survive a crash once the directory itself is on disk.
+                force(parent.toPath(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                LOG.debug("Unable to sync directory " + parent + ", not every platform allows it", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the obsolete files. Files are never rewritten by compaction, so nothing moves.
+     */
+    @Override
+    public long compact(Set<String> obsolete, Map<String, String> moved) throws IOException {
+        long reclaimed = 0;
+        for (String location : obsolete) {
+            File file = new File(directory, location);
+            long length = file.length();
+            if (file.delete()) {
+                reclaimed += length;
+            } else if (file.exists()) {
+                LOG.warn("Unable to delete obsolete cached response " + file);
+            }
+        }
+        return reclaimed;
+    }
+
+    private static void force(Path path, OpenOption option) throws IOException {
+        FileChannel channel = FileChannel.open(path, option);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing is held open between calls.
+    }
+
+    private List<File> fixtureFiles() {
+        if (!sharded) {
+            return fixtureFiles(directory);
+        }
+        List<File> fixtureFiles = new ArrayList<File>();
+        for (File outerShard : shards(directory)) {
+            for (File shard : shards(outerShard)) {
+                fixtureFiles.addAll(fixtureFiles(shard));
+            }
+        }
+        return fixtureFiles;
+    }
+
+    /**
+     * @return The shard directories directly inside the given directory.
+     */
+    static List<File> shards(File directory) {
+        List<File> shards = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return shards;
+        }
+        for (File file : files) {
+            if (file.isDirectory() && SHARD_NAME.matcher(file.getName()).matches()) {
+                shards.add(file);
+            }
+        }
+        return shards;
+    }
+
+    private static List<File> fixtureFiles(File directory) {
+        List<File> fixtureFiles = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return fixtureFiles;
+        }
+        for (File file : files) {
+            if (!file.isDirectory() && file.getName().endsWith(FIXTURE_EXTENSION)) {
+                fixtureFiles.add(file);
+            }
+        }
+        return fixtureFiles;
+    }
+
+    /**
+     * Reads a recorded response, skipping over its body.
+     */
+    private CachedResponse readWithoutBody(File file) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), FIXTURE_CHARSET));
+        try {
+            JsonParser parser = new JsonParser();
+            JsonObject json = new JsonObject();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (CachedResponseAdapter.BODY_PROPERTIES.contains(name)) {
+                    reader.skipValue();
+                } else {
+                    json.add(name, parser.parse(reader));
+                }
+            }
+            reader.endObject();
+            return gson.fromJson(json, CachedResponse.class);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to read recorded response from " + file, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Map<String, FixtureSummary> readSummaries() {
+        Map<String, FixtureSummary> summaries = new HashMap<String, FixtureSummary>();
+        File summaryFile = new File(directory, SUMMARY_FILE);
+        if (!summaryFile.exists()) {
+            return summaries;
+        }
+        try {
+            FixtureSummaries saved = gson.fromJson(FileUtils.readFileToString(summaryFile, FIXTURE_CHARSET), FixtureSummaries.class);
+            if (saved == null || saved.matchKeyVersion != RequestToProxy.MATCH_KEY_VERSION
+                    || !matchRules.getFingerprint().equals(saved.matchRules) || saved.fixtures == null) {
+                return summaries;
+            }
+            for (FixtureSummary summary : saved.fixtures) {
+                summaries.put(summary.file, summary);
+            }
+        } catch (IOException e) {
+            // Rebuild it.
+        } catch (JsonParseException e) {
+            // Rebuild it.
+        }
+        return summaries;
+    }
+
+    private void writeSummaries(List<FixtureSummary> summaries) throws IOException {
+        FixtureSummaries toSave = new FixtureSummaries();
+        toSave.matchKeyVersion = RequestToProxy.MATCH_KEY_VERSION;
+        toSave.matchRules = matchRules.getFingerprint();
+        toSave.fixtures = summaries;
+        File summaryFile = new File(directory, SUMMARY_FILE);
+        File temporaryFile = new File(directory, SUMMARY_FILE + ".tmp");
+        FileUtils.writeStringToFile(temporaryFile, gson.toJson(toSave), FIXTURE_CHARSET);
+        Files.move(temporaryFile.toPath(), summaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Creates a new, empty file to record a response in. Recordings of the same path made in the same millisecond get a numbered suffix.
+     */
+    private File createFixtureFile(String filename, long timeCreatedUtcMillis) throws IOException {
+        String prefix = escapeFileName(filename) + "-" + timeCreatedUtcMillis;
+        File file = new File(directory, prefix + FIXTURE_EXTENSION);
+        int attempt = 1;
+        while (!file.createNewFile()) {
+            file = new File(directory, prefix + "-" + attempt++ + FIXTURE_EXTENSION);
+        }
+        return file;
+    }
+
+    private static String escapeFileName(String filename) {
+
+        return filename.replace("/", "-").replace("?", "+").replace("&", "+");
+    }
+
+    /**
+     * @return The Gson used to read and write recorded responses.
+     */
+    static Gson createGson() {
+        return createGson(CompiledMatchRules.NONE);
+    }
+
+    /**
+     * @param matchRules The rules the requests read back are matched by.
+     * @return The Gson used to read and write recorded responses.
+     */
+    static Gson createGson(CompiledMatchRules matchRules) {
+        GsonBuilder builder = new GsonBuilder();
+        builder.registerTypeAdapter(CachedResponse.class, new CachedResponseAdapter(matchRules));
+        builder.registerTypeAdapter(Header.class, new InstanceCreator<Header>() {
+            @Override
+            public Header createInstance(Type type) {
+                return new BasicHeader("", "");
+            }
+        });
+        builder.registerTypeAdapter(HttpEntity.class, new InstanceCreator<HttpEntity>() {
+            @Override
+            public HttpEntity createInstance(Type type) {
+                try {
+                    return new StringEntity("");
+                } catch (UnsupportedEncodingException e) {
+                   throw new RuntimeException(e);
+                }
+            }
+        });
+        builder.registerTypeAdapter(Header.class, new JsonDeserializer<Header>() {
+            @Override
+            public Header deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+                JsonObject jsonObject = json.getAsJsonObject();
+                return new BasicHeader(jsonObject.get("name").getAsString(), jsonObject.get("value").getAsString());
+            }
+        });
+        builder.registerTypeAdapter(Header.class, new JsonSerializer<Header>() {
+            @Override
+            public JsonElement serialize(Header src, Type typeOfSrc, JsonSerializationContext context) {
+                JsonObject jsonObject = new JsonObject();
+                jsonObject.addProperty("name", src.getName());
+                jsonObject.addProperty("value", src.getValue());
+                return jsonObject;
+            }
+        });
+        builder.registerTypeAdapter(HttpEntity.class, new JsonSerializer<HttpEntity>() {
+            @Override
+            public JsonElement serialize(HttpEntity src, Type typeOfSrc, JsonSerializationContext context) {
+                // The body is part of the match key, so it has to be read back byte for byte.
+                byte[] body;
+                try {
+                    body = IOUtils.toByteArray(src.getContent());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                String text = new String(body, REQUEST_BODY_CHARSET);
+                if (Arrays.equals(text.getBytes(REQUEST_BODY_CHARSET), body)) {
+                    return new JsonPrimitive(text);
+                }
+                JsonObject binary = new JsonObject();
+                binary.addProperty("binaryContent", BaseEncoding.base64().encode(body));
+                return binary;
+            }
+        });
+        builder.registerTypeAdapter(HttpEntity.class, new JsonDeserializer<HttpEntity>() {
+            @Override
+            public HttpEntity deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+                if (json.isJsonObject()) {
+                    return new ByteArrayEntity(BaseEncoding.base64().decode(json.getAsJsonObject().get("binaryContent").getAsString()));
+                }
+                return new ByteArrayEntity(json.getAsString().getBytes(REQUEST_BODY_CHARSET));
+            }
+        });
+        return builder.create();
+    }
+
+    /**
+     * The contents of the summary file.
+     */
+    private static class FixtureSummaries {
+        private int matchKeyVersion;
+        private String matchRules;
+        private List<FixtureSummary> fixtures;
+    }
+
+    /**
+     * What is known about one fixture file without opening it.
+     */
+    private static class FixtureSummary {
+        private String file;
+        private long lastModified;
+        private long length;
+        private String matchKey;
+        private long timeCreatedUtcMillis;
+
+        FixtureSummary(String location, File file, String matchKey, long timeCreatedUtcMillis) {
+            this.file = location;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.matchKey = matchKey;
+            this.timeCreatedUtcMillis = timeCreatedUtcMillis;
+        }
+    }
+}
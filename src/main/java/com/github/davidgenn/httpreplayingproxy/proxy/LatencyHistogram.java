@@ -0,0 +1,61 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took in a fixed set of buckets, the same buckets for every histogram.
+ * <p>Recording is a handful of comparisons and two atomic increments, so it is cheap enough to leave on under load.</p>
+ */
+class LatencyHistogram {
+
+    /**
+     * The upper bound of each bucket in seconds. Anything slower falls into a final, unbounded bucket.
+     */
+    static final double[] BUCKET_SECONDS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_NANOS.length + 1);
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return How many recordings took at most the upper bound of the bucket, as Prometheus expects.
+     */
+    long cumulativeCount(int bucket) {
+        long count = 0;
+        for (int i = 0; i <= bucket; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return How many times something was recorded.
+     */
+    long count() {
+        return cumulativeCount(BUCKET_NANOS.length);
+    }
+
+    /**
+     * @return The total of everything recorded, in seconds.
+     */
+    double sumSeconds() {
+        return sumNanos.get() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Builds match keys without allocating anything but the key itself.
+ * <p>
+ *     A key is the method and path followed by a digest of the headers and a digest of the body, e.g.
+ *     {@code GET /orders/42?expand=items#5f0c6a1e93d2b47c0000000000000000}. Each header is hashed on its own and the hashes
+ *     are added together, so the digest is the same whatever order the headers arrive in and they never need sorting.
+ *     Header names are compared ignoring case, as HTTP does, and Accept-Encoding never counts.
+ * </p>
+ * <p>
+ *     CompiledMatchRules decide which headers count, and the path and body are passed through them before they are
+ *     added, so requests that only differ in what the rules ignore get the same key.
+ * </p>
+ * <p>One builder, with its scratch buffers, is kept per thread. Use {@link #forThisThread()} to get it.</p>
+ */
+class MatchKeyBuilder {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_RETAINED_BODY_BYTES = 64 * 1024;
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MatchKeyBuilder> BUILDERS = new ThreadLocal<MatchKeyBuilder>() {
+        @Override
+        protected MatchKeyBuilder initialValue() {
+            return new MatchKeyBuilder();
+        }
+    };
+
+    private final StringBuilder key = new StringBuilder(256);
+    private byte[] scratch = new byte[4096];
+    private byte[] body;
+    private int bodyLength;
+    private byte[] digestedBody;
+    private long headerDigest;
+    private int headerCount;
+
+    private MatchKeyBuilder() {
+    }
+
+    /**
+     * @return This thread's builder, emptied and ready for a new request.
+     */
+    static MatchKeyBuilder forThisThread() {
+        MatchKeyBuilder builder = BUILDERS.get();
+        if (builder.scratch.length > MAX_RETAINED_BODY_BYTES) {
+            // Don't let one large upload pin its buffer to this thread for good.
+            builder.scratch = new byte[4096];
+        }
+        builder.body = builder.scratch;
+        builder.bodyLength = 0;
+        builder.digestedBody = null;
+        builder.headerDigest = 0;
+        builder.headerCount = 0;
+        return builder;
+    }
+
+    /**
+     * Adds a header to the key. Accept-Encoding is left out, as the proxy encodes replayed responses to suit each client
+     * itself, and so are If-None-Match and If-Modified-Since, as the proxy answers conditional requests itself. So is any
+     * header the rules don't match.
+     */
+    void header(String name, String value, MatchHeaders matchHeaders, CompiledMatchRules rules) {
+        if (MatchHeaders.IGNORE_HEADERS == matchHeaders || isAnsweredByTheProxy(name) || !rules.matchesHeader(name)) {
+            return;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ toLowerCase(name.charAt(i))) * FNV_PRIME;
+        }
+        if (MatchHeaders.MATCH_NAME_AND_VALUE == matchHeaders) {
+            hash = (hash ^ ':') * FNV_PRIME;
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        headerDigest += mix(hash);
+        headerCount++;
+    }
+
+    /**
+     * @return Whether the header only affects how the proxy answers, rather than which response it answers with.
+     */
+    static boolean isAnsweredByTheProxy(String name) {
+        return ACCEPT_ENCODING.equalsIgnoreCase(name) || IF_NONE_MATCH.equalsIgnoreCase(name) || IF_MODIFIED_SINCE.equalsIgnoreCase(name);
+    }
+
+    /**
+     * Reads the whole body into this builder's scratch buffer.
+     * @param expectedLength The length of the body, if known, or -1.
+     */
+    void readBody(InputStream in, long expectedLength) throws IOException {
+        if (expectedLength >= scratch.length && expectedLength < Integer.MAX_VALUE) {
+            // One spare byte, so that reading the end of the body doesn't grow the buffer.
+            scratch = new byte[(int) expectedLength + 1];
+        }
+        int read;
+        while ((read = in.read(scratch, bodyLength, scratch.length - bodyLength)) != -1) {
+            bodyLength += read;
+            if (bodyLength == scratch.length) {
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+        }
+        body = scratch;
+    }
+
+    /**
+     * Uses a body that is already in memory.
+     */
+    void body(byte[] bytes) {
+        body = bytes;
+        bodyLength = bytes.length;
+    }
+
+    /**
+     * Replaces the body with the form the rules match it in, if they change it. The body itself is kept for {@link #copyOfBody()}.
+     * @param contentType The Content-Type of the request, or null.
+     */
+    void normaliseBody(CompiledMatchRules rules, String contentType) {
+        byte[] canonical = rules.canonicalBody(body, bodyLength, contentType);
+        if (canonical != null) {
+            digestedBody = canonical;
+        }
+    }
+
+    /**
+     * @return Whether the request has a body.
+     */
+    boolean hasBody() {
+        return bodyLength > 0;
+    }
+
+    /**
+     * @return A copy of the body read by {@link #readBody}.
+     */
+    byte[] copyOfBody() {
+        return Arrays.copyOf(body, bodyLength);
+    }
+
+    /**
+     * @return The key for the request.
+     */
+    String build(HttpMethod method, String requestPath, CompiledMatchRules rules) {
+        byte[] digested = digestedBody == null ? body : digestedBody;
+        int digestedLength = digestedBody == null ? bodyLength : digestedBody.length;
+        long bodyDigest = FNV_OFFSET_BASIS;
+        for (int i = 0; i < digestedLength; i++) {
+            bodyDigest = (bodyDigest ^ (digested[i] & 0xff)) * FNV_PRIME;
+        }
+        key.setLength(0);
+        key.append(method.name()).append(' ').append(rules.canonicalPath(requestPath)).append('#');
+        appendHex(headerCount == 0 ? 0 : mix(headerDigest + headerCount));
+        appendHex(digestedLength == 0 ? 0 : mix(bodyDigest ^ digestedLength));
+        body = scratch;
+        digestedBody = null;
+        return key.toString();
+    }
+
+    private void appendHex(long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            key.append(HEX[(int) (value >>> shift) & 0xf]);
+        }
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Spreads the bits of a hash so that adding hashes together doesn't lose them. The finaliser from MurmurHash3.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Rules for what parts of a request are ignored, or put into a standard form, when looking for a previously cached response.
+ * <p>
+ *     Configured once and compiled when the proxy starts. The compiled rules are applied as each request's match key is
+ *     built, so requests that only differ in what the rules ignore get the same key and are still looked up by it in a
+ *     single hash lookup.
+ * </p>
+ * <p>The rules only change how requests are matched. The 'real' service is always sent the request as it arrived.</p>
+ */
+public class MatchRules {
+
+    private final Set<String> pathTemplates = new LinkedHashSet<String>();
+    private final Set<String> ignoredQueryParameters = new LinkedHashSet<String>();
+    private boolean ignoreQueryParameterOrder = false;
+    private final Set<String> ignoredJsonBodyFields = new LinkedHashSet<String>();
+    private final Set<String> matchedHeaders = new LinkedHashSet<String>();
+    private final Set<String> ignoredHeaders = new LinkedHashSet<String>();
+
+    /**
+     * @param templates Paths that requests match whatever the value of some of their segments, e.g. "/users/{id}".
+     *                  A segment can be a {parameter} or *, either of which match any one segment, or, last of all,
+     *                  **, which matches the rest of the path. A path that matches more than one template matches the
+     *                  most specific. Requests whose paths match the same template share a cached response. Templates
+     *                  that match exactly the same paths, such as /users/{id} and /users/*, are rejected when the proxy
+     *                  starts.
+     * @return The MatchRules.
+     */
+    public MatchRules matchPathTemplates(String... templates) {
+        pathTemplates.addAll(Arrays.asList(templates));
+        return this;
+    }
+
+    /**
+     * @param names The names of query parameters whose presence and value don't matter, e.g. a timestamp or a cache buster.
+     * @return The MatchRules.
+     */
+    public MatchRules ignoreQueryParameters(String... names) {
+        ignoredQueryParameters.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    /**
+     * @param ignoreQueryParameterOrder Whether requests whose query parameters only differ in order should match.
+     * @return The MatchRules.
+     */
+    public MatchRules ignoreQueryParameterOrder(boolean ignoreQueryParameterOrder) {
+        this.ignoreQueryParameterOrder = ignoreQueryParameterOrder;
+        return this;
+    }
+
+    /**
+     * @param paths The fields of a JSON body whose presence and value don't matter, e.g. "requestId" or "meta.sentAt".
+     *              Nested fields are separated with '.', and a path into an array applies to every element of it.
+     *              Bodies that aren't JSON are matched as they are.
+     * @return The MatchRules.
+     */
+    public MatchRules ignoreJsonBodyFields(String... paths) {
+        ignoredJsonBodyFields.addAll(Arrays.asList(paths));
+        return this;
+    }
+
+    /**
+     * @param names The only headers that are matched, ignoring case. Any other header is ignored. How they are matched
+     *              is still up to the MatchHeaders.
+     * @return The MatchRules.
+     */
+    public MatchRules matchOnlyHeaders(String... names) {
+        matchedHeaders.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    /**
+     * @param names Headers that are never matched, ignoring case, e.g. a request id or a date.
+     * @return The MatchRules.
+     */
+    public MatchRules ignoreHeaders(String... names) {
+        ignoredHeaders.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    /**
+     * @return The path templates requests are matched by.
+     */
+    public Set<String> getPathTemplates() {
+        return pathTemplates;
+    }
+
+    /**
+     * @return The names of the query parameters that are ignored.
+     */
+    public Set<String> getIgnoredQueryParameters() {
+        return ignoredQueryParameters;
+    }
+
+    /**
+     * @return Whether requests whose query parameters only differ in order match.
+     */
+    public boolean shouldIgnoreQueryParameterOrder() {
+        return ignoreQueryParameterOrder;
+    }
+
+    /**
+     * @return The paths of the JSON body fields that are ignored.
+     */
+    public Set<String> getIgnoredJsonBodyFields() {
+        return ignoredJsonBodyFields;
+    }
+
+    /**
+     * @return The only headers that are matched, or an empty set if any header can be.
+     */
+    public Set<String> getMatchedHeaders() {
+        return matchedHeaders;
+    }
+
+    /**
+     * @return The headers that are never matched.
+     */
+    public Set<String> getIgnoredHeaders() {
+        return ignoredHeaders;
+    }
+
+    /**
+     * @return The rules, compiled ready to apply to each request.
+     */
+    CompiledMatchRules compile() {
+        return new CompiledMatchRules(this);
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the path template a request path matches, one path segment at a time.
+ * <p>
+ *     Templates are paths whose segments can be literal, like {@code users}, a parameter, like {@code {id}}, or a
+ *     wildcard, {@code *}, either of which matches any one non-empty segment, or, as the last segment only, {@code **},
+ *     which matches whatever is left of the path, including nothing. A parameter and a wildcard are the same thing to
+ *     the trie, so templates that only differ in which they use match the same paths and can't both be added.
+ * </p>
+ * <p>
+ *     Each node of the trie is one segment of one or more templates. When more than one template matches, the most
+ *     specific wins: at the first segment where they differ, a literal beats a parameter or wildcard, which beats
+ *     {@code **}. A lookup follows the most specific branch first and only goes back to try another when that branch
+ *     leads to no template, so it usually visits one node per segment of the path, and never visits a node twice
+ *     however many templates share it.
+ * </p>
+ */
+class PathTemplateTrie {
+
+    private static final String WILDCARD = "*";
+    private static final String REST = "**";
+
+    private final Node root = new Node();
+    private boolean empty = true;
+
+    /**
+     * Adds a template.
+     * @param template A path template, e.g. /users/{id}/orders/*.
+     * @throws IllegalArgumentException If the template isn't a path, uses ** other than at the end, or matches exactly the
+     * same paths as a template already added.
+     */
+    void add(String template) {
+        if (!template.startsWith("/")) {
+            throw new IllegalArgumentException("Path template=" + template + " must start with '/'");
+        }
+        String[] segments = template.substring(1).split("/", -1);
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (REST.equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("Path template=" + template + " can only use ** as its last segment");
+                }
+                if (node.rest == null) {
+                    node.rest = new Node();
+                }
+                node = node.rest;
+            } else if (WILDCARD.equals(segment) || isParameter(segment)) {
+                if (node.anySegment == null) {
+                    node.anySegment = new Node();
+                }
+                node = node.anySegment;
+            } else {
+                Node child = node.literals.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.literals.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        if (node.template != null && !node.template.equals(template)) {
+            throw new IllegalArgumentException("Path templates " + node.template + " and " + template + " match the same paths");
+        }
+        node.template = template;
+        empty = false;
+    }
+
+    private static boolean isParameter(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    /**
+     * @return Whether no templates have been added.
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @param path A request path, without the query.
+     * @return The most specific template the path matches, or null if it matches none.
+     */
+    String match(String path) {
+        if (empty || !path.startsWith("/")) {
+            return null;
+        }
+        return root.match(path, 1);
+    }
+
+    /**
+     * One segment of the templates.
+     */
+    private static class Node {
+
+        private final Map<String, Node> literals = new HashMap<String, Node>();
+        private Node anySegment;
+        private Node rest;
+        private String template;
+
+        /**
+         * @param start Where the next segment of the path starts, or the length of the path plus one if it has no more.
+         */
+        String match(String path, int start) {
+            if (start > path.length()) {
+                return template != null ? template : (rest != null ? rest.template : null);
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            String matched;
+            if (!literals.isEmpty()) {
+                Node literal = literals.get(path.substring(start, end));
+                if (literal != null && (matched = literal.match(path, end + 1)) != null) {
+                    return matched;
+                }
+            }
+            if (end > start && anySegment != null && (matched = anySegment.match(path, end + 1)) != null) {
+                return matched;
+            }
+            return rest != null ? rest.template : null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes ProxyStatistics in the Prometheus text exposition format, version 0.0.4.
+ */
+class PrometheusTextFormat {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "httpreplayingproxy_";
+    private static final String[] BUCKET_LABELS = new String[LatencyHistogram.BUCKET_SECONDS.length];
+    static {
+        for (int i = 0; i < BUCKET_LABELS.length; i++) {
+            BUCKET_LABELS[i] = new BigDecimal(Double.toString(LatencyHistogram.BUCKET_SECONDS[i])).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private PrometheusTextFormat() {
+    }
+
+    /**
+     * @param statistics The statistics to write.
+     * @return The statistics as Prometheus text.
+     */
+    static String format(ProxyStatistics statistics) {
+        StringBuilder text = new StringBuilder(4096);
+        header(text, "requests_total", "counter", "Requests answered, by route and whether they were replayed from the cache.");
+        routes(text, "requests_total", "hit", statistics.getRouteHits());
+        routes(text, "requests_total", "miss", statistics.getRouteMisses());
+
+        histogram(text, "replay_duration_seconds", "Time taken to replay a cached response.", statistics.getReplayLatency());
+        histogram(text, "upstream_duration_seconds", "Time taken for the 'real' service to start responding.", statistics.getUpstreamLatency());
+        histogram(text, "disk_write_duration_seconds", "Time taken to write a recorded response to disk.", statistics.getDiskWriteLatency());
+
+        gauge(text, "in_flight_requests", "Requests being handled right now.", statistics.getInFlightRequests());
+        gauge(text, "cached_responses", "Responses that can be replayed.", statistics.getCachedResponses());
+        gauge(text, "resident_bytes", "Approximate memory taken up by cached responses held in memory.", statistics.getResidentBytes());
+        gauge(text, "pending_writes", "Recorded responses waiting to be written to disk.", statistics.getPendingWrites());
+
+        counter(text, "coalesced_requests_total", "Cache misses that waited for a matching call to the 'real' service.", statistics.getCoalescedRequests());
+        counter(text, "responses_read_from_disk_total", "Cached responses read from disk because they weren't held in memory.", statistics.getResponsesReadFromDisk());
+        counter(text, "write_batches_total", "Batches of recorded responses written to disk in the background.", statistics.getWriteBatches());
+        counter(text, "failed_writes_total", "Recorded responses that couldn't be written to disk in the background.", statistics.getFailedWrites());
+        counter(text, "resident_evictions_total", "Cached responses dropped from memory to stay within the configured limit.", statistics.getResidentEvictions());
+        counter(text, "fixtures_reloaded_total", "Cached responses read again because their fixture changed on disk.", statistics.getFixturesReloaded());
+        counter(text, "fixtures_removed_total", "Cached responses dropped because their fixture was deleted or changed on disk.", statistics.getFixturesRemoved());
+        counter(text, "stale_responses_total", "Expired responses replayed while a fresh one was fetched in the background.", statistics.getStaleResponses());
+        counter(text, "refreshes_total", "Expired responses replaced by a fresh one fetched in the background.", statistics.getRefreshes());
+        counter(text, "refresh_failures_total", "Background refreshes that failed, leaving the expired response in place.", statistics.getRefreshFailures());
+        counter(text, "refreshes_skipped_total", "Background refreshes not attempted because too many were already waiting.", statistics.getRefreshesSkipped());
+        counter(text, "compactions_total", "Times superseded and expired fixtures have been removed from disk.", statistics.getCompactions());
+        counter(text, "fixtures_compacted_total", "Superseded or expired fixtures removed from disk by compaction.", statistics.getFixturesCompacted());
+        counter(text, "compaction_reclaimed_bytes_total", "Disk space reclaimed by compaction.", statistics.getBytesReclaimed());
+        counter(text, "not_modified_responses_total", "Conditional requests answered 304 Not Modified.", statistics.getNotModifiedResponses());
+        counter(text, "revalidations_total", "Expired responses the real service confirmed were still current.", statistics.getRevalidations());
+        counter(text, "decoded_bodies_total", "Gzipped cached bodies gunzipped, once each, for clients that don't accept gzip.", statistics.getDecodedBodies());
+        gauge(text, "fixtures_loaded", "Cached responses loaded when the server started.", statistics.getFixturesLoaded());
+        gauge(text, "unreadable_fixtures", "Cached responses skipped when the server started because they couldn't be read.", statistics.getUnreadableFixtures());
+        gauge(text, "fixture_load_seconds", "Time taken to load the cached responses when the server started.", statistics.getFixtureLoadMillis() / 1000.0);
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void routes(StringBuilder text, String name, String result, Map<String, AtomicLong> counters) {
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            text.append(PREFIX).append(name).append("{route=\"");
+            escape(text, counter.getKey());
+            text.append("\",result=\"").append(result).append("\"} ").append(counter.getValue().get()).append('\n');
+        }
+    }
+
+    private static void histogram(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        header(text, name, "histogram", help);
+        for (int bucket = 0; bucket < BUCKET_LABELS.length; bucket++) {
+            text.append(PREFIX).append(name).append("_bucket{le=\"").append(BUCKET_LABELS[bucket]).append("\"} ")
+                    .append(histogram.cumulativeCount(bucket)).append('\n');
+        }
+        long count = histogram.count();
+        text.append(PREFIX).append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        text.append(PREFIX).append(name).append("_sum ").append(histogram.sumSeconds()).append('\n');
+        text.append(PREFIX).append(name).append("_count ").append(count).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, Number value) {
+        header(text, name, "gauge", help);
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, "counter", help);
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void escape(StringBuilder text, String labelValue) {
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else {
+                text.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.util.regex.Pattern;
+
+/**
+ * Configures one of the 'real' services a HttpReplayingProxy passes requests on to, and which requests go to it.
+ * <p>
+ *     A route matches requests by the host they were sent to, by the start of their path, or by both. Each route records
+ *     its responses in a directory of its own, named after the route, below the root directory for the cache. The time to
+ *     live, how headers are matched and the match rules default to those of the HttpReplayingProxyConfiguration it is
+ *     added to.
+ * </p>
+ */
+public class ProxyRoute {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private final String name;
+    private String host;
+    private String pathPrefix;
+    private String proxyUrl;
+    private Long timeToLiveSeconds;
+    private MatchHeaders matchHeaders;
+    private MatchRules matchRules;
+
+    /**
+     * Creates a ProxyRoute.
+     * @param name The name of the route, which its cached responses are stored under. Letters, digits, '.', '_' and '-' only.
+     * @throws IllegalArgumentException If the name can't be used as a directory name.
+     */
+    public ProxyRoute(String name) {
+        if (name == null || !NAME.matcher(name).matches() || name.equals(".") || name.equals("..")) {
+            throw new IllegalArgumentException("Route name=" + name + " must be letters, digits, '.', '_' and '-' only");
+        }
+        this.name = name;
+    }
+
+    /**
+     * @param host The host requests must have been sent to, as given in their Host header, ignoring the port and case.
+     * @return The ProxyRoute.
+     */
+    public ProxyRoute forHost(String host) {
+        this.host = host == null ? null : host.toLowerCase();
+        return this;
+    }
+
+    /**
+     * @param pathPrefix The path requests must start with, e.g. /users. Matches whole segments only, so /users doesn't
+     *                   match /usersettings. The path is passed on to the 'real' service as it is.
+     * @return The ProxyRoute.
+     */
+    public ProxyRoute forPathPrefix(String pathPrefix) {
+        if (pathPrefix != null && !pathPrefix.startsWith("/")) {
+            pathPrefix = "/" + pathPrefix;
+        }
+        while (pathPrefix != null && pathPrefix.length() > 1 && pathPrefix.endsWith("/")) {
+            pathPrefix = pathPrefix.substring(0, pathPrefix.length() - 1);
+        }
+        this.pathPrefix = pathPrefix;
+        return this;
+    }
+
+    /**
+     * @param urlToProxyTo The 'real' url to proxy matching calls to.
+     * @return The ProxyRoute.
+     */
+    public ProxyRoute urlToProxyTo(String urlToProxyTo) {
+        this.proxyUrl = urlToProxyTo;
+        return this;
+    }
+
+    /**
+     * @param timeToLiveSeconds The time to live for this route's cached responses in seconds.
+     * @return The ProxyRoute.
+     */
+    public ProxyRoute timeToLiveForCacheInSeconds(long timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+        return this;
+    }
+
+    /**
+     * @param matchHeaders How headers should be treated when looking for a previously cached response to this route.
+     * @return The ProxyRoute.
+     */
+    public ProxyRoute treatHeaders(MatchHeaders matchHeaders) {
+        this.matchHeaders = matchHeaders;
+        return this;
+    }
+
+    /**
+     * @param matchRules What else should be ignored, or put into a standard form, when looking for a previously cached
+     *                   response to this route.
+     * @return The ProxyRoute.
+     */
+    public ProxyRoute withMatchRules(MatchRules matchRules) {
+        this.matchRules = matchRules;
+        return this;
+    }
+
+    /**
+     * @return The name of the route.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The host requests must have been sent to, or null if any host will do.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return The path requests must start with, or null if any path will do.
+     */
+    public String getPathPrefix() {
+        return pathPrefix;
+    }
+
+    /**
+     * @return The url matching calls are proxied to.
+     */
+    public String getUrlToProxyTo() {
+        return proxyUrl;
+    }
+
+    /**
+     * @param defaults The configuration the route was added to.
+     * @return The time to live for this route's cached responses in seconds.
+     */
+    long getTimeToLiveSeconds(HttpReplayingProxyConfiguration defaults) {
+        return timeToLiveSeconds == null ? defaults.getTimeToLiveSeconds() : timeToLiveSeconds;
+    }
+
+    /**
+     * @param defaults The configuration the route was added to.
+     * @return How headers should be treated when looking for a previously cached response to this route.
+     */
+    MatchHeaders getMatchHeaders(HttpReplayingProxyConfiguration defaults) {
+        return matchHeaders == null ? defaults.getMatchHeaders() : matchHeaders;
+    }
+
+    /**
+     * @param defaults The configuration the route was added to.
+     * @return What else is ignored, or put into a standard form, when looking for a previously cached response to this route.
+     */
+    MatchRules getMatchRules(HttpReplayingProxyConfiguration defaults) {
+        return matchRules == null ? defaults.getMatchRules() : matchRules;
+    }
+
+    /**
+     * @param host The host the request was sent to, without the port.
+     * @param path The path of the request, without the query.
+     * @return Whether the request should go to this route.
+     */
+    boolean matches(String host, String path) {
+        if (this.host != null && !this.host.equalsIgnoreCase(host)) {
+            return false;
+        }
+        if (pathPrefix == null || pathPrefix.equals("/")) {
+            return true;
+        }
+        return path.startsWith(pathPrefix) && (path.length() == pathPrefix.length() || path.charAt(pathPrefix.length()) == '/');
+    }
+
+    /**
+     * Orders routes most specific first: routes for a host before routes for any host, then longer path prefixes before
+     * shorter ones.
+     */
+    int compareSpecificity(ProxyRoute other) {
+        if ((host == null) != (other.host == null)) {
+            return host == null ? 1 : -1;
+        }
+        return prefixLength(other) - prefixLength(this);
+    }
+
+    private static int prefixLength(ProxyRoute route) {
+        return route.pathPrefix == null ? 0 : route.pathPrefix.length();
+    }
+
+    @Override
+    public String toString() {
+        return name + "(host=" + (host == null ? "*" : host) + ", pathPrefix=" + (pathPrefix == null ? "/" : pathPrefix) + ") -> " + proxyUrl;
+    }
+}
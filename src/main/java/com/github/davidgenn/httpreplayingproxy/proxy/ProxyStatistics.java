@@ -0,0 +1,391 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing what a HttpReplayingProxy has done.
+ * <p>Also served, with latency histograms, in the Prometheus text format from {@link #METRICS_PATH} on the proxy.</p>
+ */
+public class ProxyStatistics {
+
+    /**
+     * The path the proxy serves its metrics from. Requests for it are never proxied.
+     */
+    public static final String METRICS_PATH = "/__httpreplayingproxy/metrics";
+
+    /**
+     * Routes seen beyond this many are counted together, so that a service with ids in its paths can't use up all the memory.
+     */
+    static final int MAX_ROUTES = 200;
+    static final String OTHER_ROUTE = "other";
+
+    private final AtomicLong coalescedRequests = new AtomicLong();
+    private final AtomicLong fixturesLoaded = new AtomicLong();
+    private final AtomicLong unreadableFixtures = new AtomicLong();
+    private final AtomicLong fixtureLoadMillis = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> routeHits = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> routeMisses = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong inFlightRequests = new AtomicLong();
+    private final AtomicLong cachedResponses = new AtomicLong();
+    private final LatencyHistogram replayLatency = new LatencyHistogram();
+    private final LatencyHistogram upstreamLatency = new LatencyHistogram();
+    private final LatencyHistogram diskWriteLatency = new LatencyHistogram();
+    private final AtomicLong responsesReadFromDisk = new AtomicLong();
+    private final AtomicLong residentEvictions = new AtomicLong();
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicLong pendingWrites = new AtomicLong();
+    private final AtomicLong writeBatches = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong fixturesReloaded = new AtomicLong();
+    private final AtomicLong fixturesRemoved = new AtomicLong();
+    private final AtomicLong staleResponses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong refreshesSkipped = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong fixturesCompacted = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong notModifiedResponses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong decodedBodies = new AtomicLong();
+
+    void recordCoalescedRequest() {
+        coalescedRequests.incrementAndGet();
+    }
+
+    void recordFixturesLoaded(int loaded, int unreadable, long elapsedMillis) {
+        fixturesLoaded.addAndGet(loaded);
+        unreadableFixtures.addAndGet(unreadable);
+        fixtureLoadMillis.addAndGet(elapsedMillis);
+    }
+
+    void recordCacheHit(String route) {
+        increment(routeHits, route);
+    }
+
+    void recordCacheMiss(String route) {
+        increment(routeMisses, route);
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String route) {
+        AtomicLong counter = counters.get(route);
+        if (counter == null) {
+            if (counters.size() >= MAX_ROUTES) {
+                route = OTHER_ROUTE;
+            }
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(route, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    void recordRequestStarted() {
+        inFlightRequests.incrementAndGet();
+    }
+
+    void recordRequestFinished() {
+        inFlightRequests.decrementAndGet();
+    }
+
+    void recordReplay(long nanos) {
+        replayLatency.record(nanos);
+    }
+
+    void recordUpstreamCall(long nanos) {
+        upstreamLatency.record(nanos);
+    }
+
+    void recordDiskWrite(long nanos) {
+        diskWriteLatency.record(nanos);
+    }
+
+    void recordCachedResponses(long added) {
+        cachedResponses.addAndGet(added);
+    }
+
+    void recordResponseReadFromDisk() {
+        responsesReadFromDisk.incrementAndGet();
+    }
+
+    void recordResident(long bytes) {
+        residentBytes.addAndGet(bytes);
+    }
+
+    void recordNoLongerResident(long bytes, boolean evicted) {
+        residentBytes.addAndGet(-bytes);
+        if (evicted) {
+            residentEvictions.incrementAndGet();
+        }
+    }
+
+    void recordWritesPending(long added) {
+        pendingWrites.addAndGet(added);
+    }
+
+    void recordWriteBatch() {
+        writeBatches.incrementAndGet();
+    }
+
+    void recordFailedWrite() {
+        failedWrites.incrementAndGet();
+    }
+
+    void recordFixturesReloaded(int reloaded, int removed) {
+        fixturesReloaded.addAndGet(reloaded);
+        fixturesRemoved.addAndGet(removed);
+    }
+
+    void recordStaleResponse() {
+        staleResponses.incrementAndGet();
+    }
+
+    void recordRefresh() {
+        refreshes.incrementAndGet();
+    }
+
+    void recordRefreshFailure() {
+        refreshFailures.incrementAndGet();
+    }
+
+    void recordRefreshSkipped() {
+        refreshesSkipped.incrementAndGet();
+    }
+
+    void recordNotModified() {
+        notModifiedResponses.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        revalidations.incrementAndGet();
+    }
+
+    void recordBodyDecoded() {
+        decodedBodies.incrementAndGet();
+    }
+
+    void recordCompaction(int removed, long reclaimed) {
+        compactions.incrementAndGet();
+        fixturesCompacted.addAndGet(removed);
+        bytesReclaimed.addAndGet(reclaimed);
+    }
+
+    /**
+     * @return The number of cache misses that waited for a matching call to the 'real' service instead of making their own.
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    /**
+     * @return The number of cached responses loaded when the server started.
+     */
+    public long getFixturesLoaded() {
+        return fixturesLoaded.get();
+    }
+
+    /**
+     * @return The number of cached responses that couldn't be read when the server started. These are skipped.
+     */
+    public long getUnreadableFixtures() {
+        return unreadableFixtures.get();
+    }
+
+    /**
+     * @return How long it took to load the cached responses when the server started.
+     */
+    public long getFixtureLoadMillis() {
+        return fixtureLoadMillis.get();
+    }
+
+    /**
+     * @return The number of requests answered with a cached response.
+     */
+    public long getCacheHits() {
+        return sum(routeHits);
+    }
+
+    /**
+     * @return The number of requests that had to be passed on to the 'real' service.
+     */
+    public long getCacheMisses() {
+        return sum(routeMisses);
+    }
+
+    private static long sum(ConcurrentMap<String, AtomicLong> counters) {
+        long sum = 0;
+        for (AtomicLong counter : counters.values()) {
+            sum += counter.get();
+        }
+        return sum;
+    }
+
+    /**
+     * @return The number of requests being handled right now.
+     */
+    public long getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    /**
+     * @return The number of responses that can be replayed, whether or not they are held in memory.
+     */
+    public long getCachedResponses() {
+        return cachedResponses.get();
+    }
+
+    /**
+     * @return The number of cached responses that weren't held in memory and had to be read from disk.
+     */
+    public long getResponsesReadFromDisk() {
+        return responsesReadFromDisk.get();
+    }
+
+    /**
+     * @return The number of cached responses dropped from memory to stay within the configured limit. They stay on disk.
+     */
+    public long getResidentEvictions() {
+        return residentEvictions.get();
+    }
+
+    /**
+     * @return Roughly how much memory, in bytes of body and metadata, the cached responses held in memory take up.
+     */
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    /**
+     * @return The number of recorded responses held in memory waiting for the background writer to save them to disk.
+     */
+    public long getPendingWrites() {
+        return pendingWrites.get();
+    }
+
+    /**
+     * @return The number of batches of recorded responses the background writer has saved to disk.
+     */
+    public long getWriteBatches() {
+        return writeBatches.get();
+    }
+
+    /**
+     * @return The number of recorded responses the background writer couldn't save to disk. They are still replayed
+     * until the server stops.
+     */
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    /**
+     * @return The number of cached responses read again because their fixture was added or changed on disk while running.
+     */
+    public long getFixturesReloaded() {
+        return fixturesReloaded.get();
+    }
+
+    /**
+     * @return The number of cached responses dropped because their fixture was deleted or changed on disk while running.
+     */
+    public long getFixturesRemoved() {
+        return fixturesRemoved.get();
+    }
+
+    /**
+     * @return The number of expired responses replayed while a fresh one was fetched in the background.
+     */
+    public long getStaleResponses() {
+        return staleResponses.get();
+    }
+
+    /**
+     * @return The number of expired responses replaced by a fresh response fetched in the background.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return The number of background refreshes that failed, leaving the expired response in place.
+     */
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    /**
+     * @return The number of background refreshes not attempted because too many were already waiting.
+     */
+    public long getRefreshesSkipped() {
+        return refreshesSkipped.get();
+    }
+
+    /**
+     * @return The number of times superseded and expired fixtures have been removed from disk.
+     */
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * @return The number of superseded or expired fixtures removed from disk by compaction.
+     */
+    public long getFixturesCompacted() {
+        return fixturesCompacted.get();
+    }
+
+    /**
+     * @return The number of bytes of disk space compaction has reclaimed.
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    /**
+     * @return The number of conditional requests answered 304 Not Modified, without sending the body again.
+     */
+    public long getNotModifiedResponses() {
+        return notModifiedResponses.get();
+    }
+
+    /**
+     * @return The number of expired responses the 'real' service confirmed were still current, so they were renewed
+     * without downloading them again.
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return The number of gzipped cached bodies gunzipped for clients that don't accept gzip. Each is decoded once and
+     * the result replayed from then on.
+     */
+    public long getDecodedBodies() {
+        return decodedBodies.get();
+    }
+
+    Map<String, AtomicLong> getRouteHits() {
+        return Collections.unmodifiableMap(routeHits);
+    }
+
+    Map<String, AtomicLong> getRouteMisses() {
+        return Collections.unmodifiableMap(routeMisses);
+    }
+
+    LatencyHistogram getReplayLatency() {
+        return replayLatency;
+    }
+
+    LatencyHistogram getUpstreamLatency() {
+        return upstreamLatency;
+    }
+
+    LatencyHistogram getDiskWriteLatency() {
+        return diskWriteLatency;
+    }
+}
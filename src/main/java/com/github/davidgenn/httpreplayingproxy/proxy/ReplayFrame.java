@@ -0,0 +1,196 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import com.google.common.hash.Hashing;
+import org.apache.http.client.utils.DateUtils;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpGenerator;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Response;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A cached response made ready to replay: its status, its headers already encoded the way Jetty writes them, including
+ * the Content-Length, and its body in a read-only buffer.
+ * <p>
+ *     Built once for each response and shared by every request that replays it, so a hit only copies the header bytes
+ *     into Jetty's header buffer and hands the body over in a single write. Bodies mapped from a segment are already
+ *     outside the heap and are sent straight from the mapping. A body that had to be decoded for the client is decoded
+ *     once into direct memory.
+ * </p>
+ * <p>
+ *     Successful responses always carry an ETag, the 'real' service's own if it gave one or otherwise a strong one made
+ *     from a hash of the body sent, so clients can ask again with If-None-Match and be answered 304 Not Modified.
+ * </p>
+ */
+class ReplayFrame {
+
+    private static final HttpField VARY_ACCEPT_ENCODING = new HttpGenerator.CachedHttpField(HttpHeader.VARY, "Accept-Encoding");
+
+    private final int statusCode;
+    private final HttpField[] headers;
+    private final HttpField[] notModifiedHeaders;
+    private final ByteBuffer body;
+    private final String eTag;
+    private final Date lastModified;
+
+    /**
+     * Creates a ReplayFrame.
+     * @param response The response to replay, with its body encoded as it should be sent.
+     * @param varies Whether the body sent depends on the Accept-Encoding of the request.
+     */
+    ReplayFrame(CachedResponse response, boolean varies) {
+        this.statusCode = response.getStatusCode();
+        this.body = response.getBodyBuffer().asReadOnlyBuffer();
+        this.eTag = response.getETag() != null || statusCode != HttpServletResponse.SC_OK ? response.getETag() : eTagOf(body);
+        this.lastModified = response.getLastModified() == null ? null : DateUtils.parseDate(response.getLastModified());
+        List<HttpField> validators = new ArrayList<HttpField>();
+        if (varies) {
+            validators.add(VARY_ACCEPT_ENCODING);
+        }
+        if (eTag != null) {
+            validators.add(new HttpGenerator.CachedHttpField(HttpHeader.ETAG, eTag));
+        }
+        if (response.getLastModified() != null) {
+            validators.add(new HttpGenerator.CachedHttpField(HttpHeader.LAST_MODIFIED, response.getLastModified()));
+        }
+        this.notModifiedHeaders = validators.toArray(new HttpField[validators.size()]);
+        List<HttpField> headers = new ArrayList<HttpField>(validators);
+        if (response.getContentType() != null && !response.getContentType().isEmpty()) {
+            headers.add(new HttpGenerator.CachedHttpField(HttpHeader.CONTENT_TYPE, response.getContentType()));
+        }
+        if (response.getContentEncoding() != null) {
+            headers.add(new HttpGenerator.CachedHttpField(HttpHeader.CONTENT_ENCODING, response.getContentEncoding()));
+        }
+        headers.add(new HttpGenerator.CachedHttpField(HttpHeader.CONTENT_LENGTH, String.valueOf(body.remaining())));
+        this.headers = headers.toArray(new HttpField[headers.size()]);
+    }
+
+    /**
+     * @return A strong ETag for the body: a quoted hex SHA-1 of its bytes.
+     */
+    private static String eTagOf(ByteBuffer body) {
+        byte[] bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        return '"' + Hashing.sha1().hashBytes(bytes).toString() + '"';
+    }
+
+    /**
+     * @param request The request being answered.
+     * @return Whether the request is a conditional GET the client already holds this response for, so it can be answered
+     * 304 Not Modified. If-None-Match is used when present, otherwise If-Modified-Since.
+     */
+    boolean isNotModifiedFor(RequestToProxy request) {
+        if (statusCode != HttpServletResponse.SC_OK || request.getHttpMethod() != HttpMethod.GET) {
+            return false;
+        }
+        String ifNoneMatch = request.getFirstHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return eTag != null && matchesAny(ifNoneMatch, eTag);
+        }
+        String ifModifiedSince = request.getFirstHeader("If-Modified-Since");
+        if (ifModifiedSince == null || lastModified == null) {
+            return false;
+        }
+        Date since = DateUtils.parseDate(ifModifiedSince);
+        return since != null && !lastModified.after(since);
+    }
+
+    /**
+     * Compares the ETags in an If-None-Match header with ours, ignoring whether either is weak, as RFC 7232 asks.
+     */
+    private static boolean matchesAny(String ifNoneMatch, String eTag) {
+        String opaqueTag = opaqueTag(eTag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if ("*".equals(candidate) || opaqueTag.equals(opaqueTag(candidate))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    /**
+     * @return A copy of the body in direct memory, so it is written to the socket without being copied again.
+     */
+    static ByteBuffer direct(ByteBuffer body) {
+        if (body.isDirect()) {
+            return body;
+        }
+        ByteBuffer direct = ByteBuffer.allocateDirect(body.remaining());
+        direct.put(body.duplicate()).flip();
+        return direct;
+    }
+
+    /**
+     * Writes the status, headers and body to the response.
+     * @param response The response to the client. Written straight into Jetty's header fields where it is a Jetty response.
+     * @throws IOException
+     */
+    void writeTo(HttpServletResponse response) throws IOException {
+        response.setStatus(statusCode);
+        if (response instanceof Response) {
+            Response jettyResponse = (Response) response;
+            for (HttpField header : headers) {
+                jettyResponse.getHttpFields().add(header);
+            }
+            jettyResponse.getHttpOutput().sendContent(body.duplicate());
+            return;
+        }
+        for (HttpField header : headers) {
+            response.addHeader(header.getName(), header.getValue());
+        }
+        ServletOutputStream outputStream = response.getOutputStream();
+        byte[] bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Writes 304 Not Modified, with the validators but not the body, to the response.
+     * @param response The response to the client.
+     */
+    void writeNotModifiedTo(HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        if (response instanceof Response) {
+            for (HttpField header : notModifiedHeaders) {
+                ((Response) response).getHttpFields().add(header);
+            }
+            return;
+        }
+        for (HttpField header : notModifiedHeaders) {
+            response.addHeader(header.getName(), header.getValue());
+        }
+    }
+
+    /**
+     * @return The ETag replayed, or null if there isn't one.
+     */
+    String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return The status code replayed.
+     */
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return How many bytes of body are replayed.
+     */
+    int getContentLength() {
+        return body.remaining();
+    }
+}
@@ -1,49 +1,246 @@
 package com.github.davidgenn.httpreplayingproxy.proxy;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
-import org.apache.http.HttpRequest;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.ProtocolException;
-import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.*;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sun.net.www.http.HttpClient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * The core Jetty handler that receives the requests that are to be proxied.
  * <p>Firstly it determines if the request is already present in the cache. If not, it calls the 'real' service.</p>
+ * <p>
+ *     Cache hits are always answered on the Jetty thread that received them. When handling misses asynchronously, the
+ *     request is suspended while a non-blocking client calls the 'real' service, and the response is recorded and written
+ *     on a Jetty thread once it has arrived.
+ * </p>
+ * <p>
+ *     When serving stale responses, an expired response is still replayed straight away and a bounded pool of background
+ *     threads asks the 'real' service for a fresh one, which replaces it in the cache once it has been recorded.
+ * </p>
+ * <p>
+ *     Each request is passed on to the most specific Upstream that matches it, and looked for in that Upstream's own
+ *     cache. Every Upstream shares the one pooled client, and the server's connector and threads.
+ * </p>
  */
 class ReplayingProxyHandler  extends AbstractHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(ReplayingProxyHandler.class);
 
+    private static final int MAX_QUEUED_REFRESHES = 1000;
+
     private final HttpReplayingProxyConfiguration configuration;
-    private final ConcurrentHashMap<String, CachedResponse> cache = new ConcurrentHashMap<String, CachedResponse>();
-    private final FileBasedCache fileBasedCache;
+    private final Upstream[] upstreams;
+    private final ProxyStatistics statistics;
+    private final ConcurrentMap<String, FutureTask<CachedResponse>> inFlight = new ConcurrentHashMap<String, FutureTask<CachedResponse>>();
+    private final ConcurrentMap<String, SettableFuture<CachedResponse>> inFlightAsynchronously = new ConcurrentHashMap<String, SettableFuture<CachedResponse>>();
+    private CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient asyncHttpClient;
+    private final ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+    private ThreadPoolExecutor refresher;
+    private final Object recordingsLock = new Object();
+    private int recordingsInProgress; // guarded by recordingsLock
 
     /**
      * Returns a ReplayingProxyHandler.
      * @param configuration The configuration.
+     * @param statistics Where to record what the handler has done.
      * @throws IOException
      */
-    public ReplayingProxyHandler(HttpReplayingProxyConfiguration configuration) throws IOException {
+    public ReplayingProxyHandler(HttpReplayingProxyConfiguration configuration, ProxyStatistics statistics) throws IOException {
         this.configuration = configuration;
-        fileBasedCache = new FileBasedCache(configuration.getCacheRootDirectory(), configuration.getTimeToLiveSeconds());
+        this.statistics = statistics;
+        this.upstreams = createUpstreams(configuration, statistics);
+    }
+
+    /**
+     * @return An Upstream for each route, most specific first, followed by one for the url the configuration proxies to
+     * itself if it has one or has no routes.
+     */
+    private static Upstream[] createUpstreams(HttpReplayingProxyConfiguration configuration, ProxyStatistics statistics) throws IOException {
+        List<ProxyRoute> routes = new ArrayList<ProxyRoute>(configuration.getRoutes());
+        Set<String> names = new HashSet<String>();
+        names.add(Upstream.DEFAULT_NAME);
+        for (ProxyRoute route : routes) {
+            if (!names.add(route.getName())) {
+                throw new IllegalArgumentException("Route name=" + route.getName() + " is used twice, or is reserved");
+            }
+        }
+        Collections.sort(routes, new Comparator<ProxyRoute>() {
+            @Override
+            public int compare(ProxyRoute route, ProxyRoute other) {
+                return route.compareSpecificity(other);
+            }
+        });
+        List<Upstream> upstreams = new ArrayList<Upstream>();
+        // Opened first, as resetting the root directory at startup empties the routes' directories too.
+        Upstream defaultUpstream = configuration.getUrlToProxyTo() != null || routes.isEmpty() ? new Upstream(configuration, statistics) : null;
+        for (ProxyRoute route : routes) {
+            upstreams.add(new Upstream(route, configuration, statistics));
+            LOG.info("Routing " + route);
+        }
+        if (defaultUpstream != null) {
+            upstreams.add(defaultUpstream);
+        }
+        return upstreams.toArray(new Upstream[upstreams.size()]);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        httpClient = createHttpClient();
+        if (configuration.shouldHandleMissesAsynchronously()) {
+            asyncHttpClient = createAsyncHttpClient();
+            asyncHttpClient.start();
+        }
+        if (configuration.shouldServeStaleWhileRevalidating()) {
+            refresher = createRefresher();
+        }
+        super.doStart();
+    }
+
+    /**
+     * Waits for recordings still in flight to be put in the cache before closing the caches, which writes out anything
+     * still waiting to be written.
+     */
+    @Override
+    protected void doStop() throws Exception {
+        awaitRecordings();
+        if (asyncHttpClient != null) {
+            // Calls still in flight are cancelled, which answers any request waiting on them.
+            asyncHttpClient.close();
+        }
+        super.doStop();
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher.awaitTermination(configuration.getUpstreamSocketTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        httpClient.close();
+        for (Upstream upstream : upstreams) {
+            upstream.close();
+        }
+    }
+
+    /**
+     * Removes superseded and expired recordings from disk.
+     * @return How many bytes of disk space were reclaimed.
+     * @throws IOException
+     */
+    long compactFixtures() throws IOException {
+        long reclaimed = 0;
+        for (Upstream upstream : upstreams) {
+            reclaimed += upstream.getCache().compact();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Builds the pooled client shared by every call to the 'real' service. It leaves bodies encoded as the 'real' service
+     * sent them, as the non-blocking client does, so both record the same bytes.
+     */
+    private CloseableHttpClient createHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(configuration.getMaxUpstreamConnections());
+        connectionManager.setDefaultMaxPerRoute(configuration.getMaxUpstreamConnectionsPerRoute());
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig())
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .disableContentCompression()
+                .build();
+    }
+
+    /**
+     * Builds the non-blocking client used for cache misses when handling them asynchronously.
+     */
+    private CloseableHttpAsyncClient createAsyncHttpClient() {
+        return HttpAsyncClients.custom()
+                .setMaxConnTotal(configuration.getMaxUpstreamConnections())
+                .setMaxConnPerRoute(configuration.getMaxUpstreamConnectionsPerRoute())
+                .setDefaultRequestConfig(requestConfig())
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .build();
+    }
+
+    /**
+     * Builds the pool that refreshes expired responses. Refreshes beyond what its queue holds are skipped, and tried
+     * again the next time the response is asked for.
+     */
+    private ThreadPoolExecutor createRefresher() {
+        int threads = configuration.getMaxConcurrentRefreshes();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REFRESHES),
+                new ThreadFactoryBuilder().setNameFormat("httpreplayingproxy-refresh-%d").setDaemon(true).build());
+    }
+
+    private RequestConfig requestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(configuration.getUpstreamConnectTimeoutMillis())
+                .setConnectionRequestTimeout(configuration.getUpstreamConnectTimeoutMillis())
+                .setSocketTimeout(configuration.getUpstreamSocketTimeoutMillis())
+                .build();
+    }
+
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        final long keepAliveMillis = configuration.getUpstreamKeepAliveMillis();
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long keepAlive = super.getKeepAliveDuration(response, context);
+                return keepAlive > 0 ? keepAlive : keepAliveMillis;
+            }
+        };
     }
 
     @Override
@@ -52,63 +249,688 @@ class ReplayingProxyHandler  extends AbstractHandler {
             throws IOException, ServletException {
 
         if (request.getRequestURI().equals("/favicon.ico")) {return;}
+        if (request.getRequestURI().equals(ProxyStatistics.METRICS_PATH)) {
+            writeMetrics(response);
+            baseRequest.setHandled(true);
+            return;
+        }
+
+        Upstream upstream = upstreamFor(baseRequest);
+        if (upstream == null) {
+            LOG.warn("No route matches " + baseRequest.getServerName() + baseRequest.getRequestURI());
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No route to a 'real' service matches this request");
+            baseRequest.setHandled(true);
+            return;
+        }
 
-        RequestToProxy requestToProxy = RequestToProxy.from(baseRequest, configuration.getMatchHeaders());
-        LOG.info("Proxying="+requestToProxy.toString());
-        CachedResponse cachedContent = fileBasedCache.get(requestToProxy);
-        if (cachedContent == null) {
-            LOG.info("Cache-MISS="+requestToProxy.toString());
+        long started = System.nanoTime();
+        boolean suspended = false;
+        statistics.recordRequestStarted();
+        try {
+            FileBasedCache fileBasedCache = upstream.getCache();
+            RequestToProxy requestToProxy = RequestToProxy.from(baseRequest, upstream.getMatchHeaders(), upstream.getMatchRules());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Proxying="+requestToProxy.toString());
+            }
+            CachedResponse cachedContent = configuration.shouldServeStaleWhileRevalidating()
+                    ? fileBasedCache.getEvenIfExpired(requestToProxy)
+                    : fileBasedCache.get(requestToProxy);
+            if (cachedContent == null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Cache-MISS="+requestToProxy.toString());
+                }
+                statistics.recordCacheMiss(route(requestToProxy));
 
-            CloseableHttpResponse proxiedResponse = callRealService(requestToProxy);
+                baseRequest.setHandled(true);
+                if (configuration.shouldHandleMissesAsynchronously()) {
+                    recordAsynchronously(upstream, requestToProxy, request, response);
+                    suspended = true;
+                } else {
+                    recordingStarted();
+                    try {
+                        if (configuration.shouldCoalesceConcurrentMisses()) {
+                            recordOnce(upstream, requestToProxy, response);
+                        } else {
+                            record(upstream, requestToProxy, response);
+                        }
+                    } finally {
+                        recordingFinished();
+                    }
+                }
+            } else {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Cache-HIT=" + requestToProxy.toString());
+                }
+                statistics.recordCacheHit(route(requestToProxy));
+                response.addHeader("x-http-replaying-proxy-cached", "true");
+                if (configuration.shouldServeStaleWhileRevalidating() && fileBasedCache.hasExpired(cachedContent)) {
+                    response.addHeader("x-http-replaying-proxy-stale", "true");
+                    statistics.recordStaleResponse();
+                    refreshInBackground(upstream, requestToProxy);
+                }
+                write(cachedContent, requestToProxy, response);
+                baseRequest.setHandled(true);
+                statistics.recordReplay(System.nanoTime() - started);
+            }
+        } finally {
+            if (!suspended) {
+                statistics.recordRequestFinished();
+            }
+        }
+    }
 
-            String content = IOUtils.toString(proxiedResponse.getEntity().getContent());
-            response.setStatus(proxiedResponse.getStatusLine().getStatusCode());
-            baseRequest.setHandled(true);
+    private void recordingStarted() {
+        synchronized (recordingsLock) {
+            recordingsInProgress++;
+        }
+    }
+
+    private void recordingFinished() {
+        synchronized (recordingsLock) {
+            recordingsInProgress--;
+            recordingsLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for every call to the 'real' service in flight to be recorded, for no longer than the upstream timeouts
+     * allow one call to take.
+     */
+    private void awaitRecordings() throws InterruptedException {
+        long timeoutMillis = upstreamCallTimeoutMillis();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (recordingsLock) {
+            while (recordingsInProgress > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeoutMillis > 0 && remaining <= 0) {
+                    LOG.warn("Stopping with " + recordingsInProgress + " calls to the 'real' service still in flight. Their responses won't be recorded.");
+                    return;
+                }
+                recordingsLock.wait(timeoutMillis > 0 ? remaining : 0);
+            }
+        }
+    }
+
+    /**
+     * @return The longest a call to the 'real' service can take before the upstream timeouts end it: waiting for a
+     * pooled connection, connecting and waiting for data. Zero if any of them waits forever.
+     */
+    private long upstreamCallTimeoutMillis() {
+        long connectTimeoutMillis = configuration.getUpstreamConnectTimeoutMillis();
+        long socketTimeoutMillis = configuration.getUpstreamSocketTimeoutMillis();
+        if (connectTimeoutMillis <= 0 || socketTimeoutMillis <= 0) {
+            return 0;
+        }
+        return 2 * connectTimeoutMillis + socketTimeoutMillis;
+    }
+
+    /**
+     * @return The first Upstream whose route matches the host and path the request was sent to, or null if none do.
+     */
+    private Upstream upstreamFor(Request baseRequest) {
+        String host = baseRequest.getServerName();
+        String path = baseRequest.getRequestURI();
+        for (Upstream upstream : upstreams) {
+            if (upstream.matches(host, path)) {
+                return upstream;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The method and first segment of the request path, which is as fine grained as the metrics go without
+     * knowing which parts of a path are ids.
+     */
+    static String route(RequestToProxy requestToProxy) {
+        String path = requestToProxy.getRequestPath();
+        int end = path.length();
+        for (int i = 1; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '/' || c == '?') {
+                end = i;
+                break;
+            }
+        }
+        return requestToProxy.getHttpMethod() + " " + path.substring(0, end);
+    }
+
+    private void writeMetrics(HttpServletResponse response) throws IOException {
+        byte[] metrics = PrometheusTextFormat.format(statistics).getBytes("UTF-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(PrometheusTextFormat.CONTENT_TYPE);
+        response.setContentLength(metrics.length);
+        response.getOutputStream().write(metrics);
+    }
+
+    /**
+     * Writes a recorded response to the client, from the ReplayFrame built for it the first time it was replayed.
+     * <p>A gzipped body is sent as it is stored to clients that accept gzip, and gunzipped for those that don't.</p>
+     * <p>A conditional GET for a response the client already holds is answered 304 Not Modified, without the body.</p>
+     */
+    private void write(CachedResponse cachedContent, RequestToProxy requestToProxy, HttpServletResponse response) throws IOException {
+        ReplayFrame frame = cachedContent.replayFrame(requestToProxy.acceptsGzip(), statistics);
+        if (frame.isNotModifiedFor(requestToProxy)) {
+            statistics.recordNotModified();
+            frame.writeNotModifiedTo(response);
+            return;
+        }
+        frame.writeTo(response);
+    }
+
+    /**
+     * @return The expired recording of a GET, if the 'real' service gave it a validator it can be revalidated with. Otherwise null.
+     */
+    private static CachedResponse revalidatable(Upstream upstream, RequestToProxy requestToProxy) {
+        if (requestToProxy.getHttpMethod() != HttpMethod.GET) {
+            return null;
+        }
+        CachedResponse expired = upstream.getCache().getEvenIfExpired(requestToProxy);
+        return expired != null && expired.hasValidator() ? expired : null;
+    }
+
+    /**
+     * Calls the 'real' service, records its response in the cache and passes it on to the client.
+     * <p>
+     *     When streaming, the body is relayed to the client as it arrives, with its Content-Encoding, and recorded as the
+     *     raw bytes received. Otherwise it is read in full first.
+     * </p>
+     * <p>
+     *     The response is indexed before the client has all of it, so a matching request sent as soon as this one has
+     *     been answered is a hit rather than a second call to the 'real' service.
+     * </p>
+     */
+    private CachedResponse record(Upstream upstream, RequestToProxy requestToProxy, HttpServletResponse response) throws IOException {
+        CachedResponse expired = revalidatable(upstream, requestToProxy);
+        long started = System.nanoTime();
+        CloseableHttpResponse proxiedResponse = callRealService(upstream, requestToProxy, expired);
+        statistics.recordUpstreamCall(System.nanoTime() - started);
+        try {
+            int statusCode = proxiedResponse.getStatusLine().getStatusCode();
             Header contentTypeHeader = proxiedResponse.getFirstHeader("Content-Type");
-            if (contentTypeHeader != null) {
-                response.addHeader("Content-Type", contentTypeHeader.getValue());
-            }
-            response.getWriter().write(content);
-            fileBasedCache.put(requestToProxy.getRequestPath(), new CachedResponse(proxiedResponse.getStatusLine().getStatusCode(), requestToProxy, content, contentTypeHeader == null ? "" : contentTypeHeader.getValue()));
-        } else {
-            LOG.info("Cache-HIT=" + requestToProxy.toString());
-            response.addHeader("x-http-replaying-proxy-cached", "true");
-            response.getWriter().write(cachedContent.getContent());
-            response.setStatus(cachedContent.getStatusCode());
-            response.addHeader("Content-Type", cachedContent.getContentType());
-            baseRequest.setHandled(true);
+            String contentType = contentTypeHeader == null ? "" : contentTypeHeader.getValue();
+            HttpEntity entity = proxiedResponse.getEntity();
+
+            CachedResponse recordedContent;
+            if (configuration.shouldStreamResponses() && !isNotModified(proxiedResponse, expired)) {
+                response.setStatus(statusCode);
+                if (!contentType.isEmpty()) {
+                    response.addHeader("Content-Type", contentType);
+                }
+                String contentEncoding = contentEncoding(proxiedResponse);
+                if (contentEncoding != null) {
+                    response.addHeader("Content-Encoding", contentEncoding);
+                    response.addHeader("Vary", "Accept-Encoding");
+                }
+                String eTag = headerValue(proxiedResponse, "ETag");
+                String lastModified = headerValue(proxiedResponse, "Last-Modified");
+                if (eTag != null) {
+                    response.addHeader("ETag", eTag);
+                }
+                if (lastModified != null) {
+                    response.addHeader("Last-Modified", lastModified);
+                }
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                int lastByte = -1;
+                if (entity != null) {
+                    if (entity.getContentLength() >= 0) {
+                        response.setContentLengthLong(entity.getContentLength());
+                    }
+                    lastByte = relay(entity.getContent(), response.getOutputStream(), body);
+                }
+                recordedContent = new CachedResponse(statusCode, requestToProxy, ByteBuffer.wrap(body.toByteArray()), contentType, contentEncoding,
+                        eTag, lastModified, new Date().getTime());
+                upstream.getCache().put(requestToProxy.getRequestPath(), recordedContent);
+                if (lastByte != -1) {
+                    response.getOutputStream().write(lastByte);
+                }
+            } else {
+                recordedContent = toCachedResponse(requestToProxy, proxiedResponse, expired);
+                upstream.getCache().put(requestToProxy.getRequestPath(), recordedContent);
+                write(recordedContent, requestToProxy, response);
+            }
+            return recordedContent;
+        } finally {
+            EntityUtils.consumeQuietly(proxiedResponse.getEntity());
+            proxiedResponse.close();
         }
     }
 
-    private CloseableHttpResponse callRealService(RequestToProxy requestToProxy) throws IOException {
-        CloseableHttpClient httpclient = HttpClients.createDefault();
+    /**
+     * @param expired The expired recording the 'real' service was asked to revalidate, or null.
+     * @return The response from the 'real' service, with its body read in full. A body the 'real' service encoded is kept
+     * encoded. If the 'real' service said the expired recording is still current, a renewed copy of it.
+     */
+    private CachedResponse toCachedResponse(RequestToProxy requestToProxy, HttpResponse proxiedResponse, CachedResponse expired) throws IOException {
+        if (isNotModified(proxiedResponse, expired)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Cache-REVALIDATED=" + requestToProxy);
+            }
+            statistics.recordRevalidation();
+            return expired.renewed(new Date().getTime(), headerValue(proxiedResponse, "ETag"), headerValue(proxiedResponse, "Last-Modified"));
+        }
+        String contentType = headerValue(proxiedResponse, "Content-Type");
+        HttpEntity entity = proxiedResponse.getEntity();
+        return new CachedResponse(
+                proxiedResponse.getStatusLine().getStatusCode(),
+                requestToProxy,
+                ByteBuffer.wrap(entity == null ? new byte[0] : EntityUtils.toByteArray(entity)),
+                contentType == null ? "" : contentType,
+                contentEncoding(proxiedResponse),
+                headerValue(proxiedResponse, "ETag"),
+                headerValue(proxiedResponse, "Last-Modified"),
+                new Date().getTime());
+    }
+
+    /**
+     * @return Whether the 'real' service answered a revalidation by saying the expired recording is still current.
+     */
+    private static boolean isNotModified(HttpResponse proxiedResponse, CachedResponse expired) {
+        return expired != null && proxiedResponse.getStatusLine().getStatusCode() == HttpServletResponse.SC_NOT_MODIFIED;
+    }
+
+    /**
+     * @return How the 'real' service encoded the body, or null if it didn't.
+     */
+    private static String contentEncoding(HttpResponse proxiedResponse) {
+        String contentEncoding = headerValue(proxiedResponse, "Content-Encoding");
+        return contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding) ? null : contentEncoding;
+    }
+
+    private static String headerValue(HttpResponse proxiedResponse, String name) {
+        Header header = proxiedResponse.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Suspends the request until the 'real' service has responded and the response has been recorded, then writes it to the client.
+     * <p>
+     *     If that takes longer than the upstream timeouts should allow, the client is answered 504 Gateway Timeout and the
+     *     response is still recorded once it arrives.
+     * </p>
+     */
+    private void recordAsynchronously(Upstream upstream, final RequestToProxy requestToProxy, HttpServletRequest request, final HttpServletResponse response) {
+        final AsyncContext asyncContext = request.startAsync();
+        final AtomicBoolean answered = new AtomicBoolean();
+        asyncContext.setTimeout(upstreamCallTimeoutMillis());
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (answered.compareAndSet(false, true)) {
+                    LOG.warn("Timed out waiting for the 'real' service to answer " + requestToProxy);
+                    sendError(response, HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    asyncContext.complete();
+                    statistics.recordRequestFinished();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        final ListenableFuture<CachedResponse> recording = recordingFor(upstream, requestToProxy, response);
+        final Runnable answer = new Runnable() {
+            @Override
+            public void run() {
+                if (!answered.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    write(resultOf(recording), requestToProxy, response);
+                } catch (IOException e) {
+                    LOG.warn("Unable to record the response from the 'real' service", e);
+                    sendError(response, HttpServletResponse.SC_BAD_GATEWAY);
+                } catch (RuntimeException e) {
+                    LOG.warn("Unable to record the response from the 'real' service", e);
+                    sendError(response, HttpServletResponse.SC_BAD_GATEWAY);
+                } finally {
+                    asyncContext.complete();
+                    statistics.recordRequestFinished();
+                }
+            }
+        };
+        recording.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getServer().getThreadPool().execute(answer);
+                } catch (RejectedExecutionException e) {
+                    // The server is stopping. Answer on this thread rather than leave the client waiting.
+                    answer.run();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * @return The recording of the response to the request. When coalescing, an in-flight recording of a matching request is shared.
+     */
+    private ListenableFuture<CachedResponse> recordingFor(Upstream upstream, RequestToProxy requestToProxy, HttpServletResponse response) {
+        SettableFuture<CachedResponse> recording = SettableFuture.create();
+        String matchKey = upstream.inFlightKey(requestToProxy);
+        boolean coalesce = configuration.shouldCoalesceConcurrentMisses();
+        if (coalesce) {
+            SettableFuture<CachedResponse> inFlightRecording = inFlightAsynchronously.putIfAbsent(matchKey, recording);
+            if (inFlightRecording != null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Cache-COALESCED=" + requestToProxy.toString());
+                }
+                statistics.recordCoalescedRequest();
+                response.addHeader("x-http-replaying-proxy-coalesced", "true");
+                return inFlightRecording;
+            }
+            CachedResponse recordedMeanwhile = upstream.getCache().get(requestToProxy);
+            if (recordedMeanwhile != null) {
+                inFlightAsynchronously.remove(matchKey, recording);
+                recording.set(recordedMeanwhile);
+                return recording;
+            }
+        }
+
+        CachedResponse expired = revalidatable(upstream, requestToProxy);
+        UpstreamCall call = new UpstreamCall(upstream, requestToProxy, expired, recording, coalesce ? matchKey : null);
+        recordingStarted();
+        try {
+            asyncHttpClient.execute(upstreamRequest(upstream, requestToProxy, expired), call);
+        } catch (RuntimeException e) {
+            // The client has been closed, so the server is stopping.
+            call.failed(e);
+        }
+        return recording;
+    }
+
+    /**
+     * Records the response to a call made with the non-blocking client. Whatever happens to the call, the recording is
+     * completed exactly once, so requests waiting on it are always answered.
+     */
+    private class UpstreamCall implements FutureCallback<HttpResponse> {
+
+        private final Upstream upstream;
+        private final RequestToProxy requestToProxy;
+        private final CachedResponse expired;
+        private final SettableFuture<CachedResponse> recording;
+        private final String inFlightKey;
+        private final long started = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        /**
+         * @param inFlightKey The key the recording is shared under while in flight, or null if it isn't shared.
+         */
+        UpstreamCall(Upstream upstream, RequestToProxy requestToProxy, CachedResponse expired,
+                     SettableFuture<CachedResponse> recording, String inFlightKey) {
+            this.upstream = upstream;
+            this.requestToProxy = requestToProxy;
+            this.expired = expired;
+            this.recording = recording;
+            this.inFlightKey = inFlightKey;
+        }
+
+        @Override
+        public void completed(final HttpResponse proxiedResponse) {
+            statistics.recordUpstreamCall(System.nanoTime() - started);
+            try {
+                // Recording writes to disk, so keep it off the client's I/O thread.
+                getServer().getThreadPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        recordResponse(proxiedResponse);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                finish(null, e);
+            }
+        }
+
+        private void recordResponse(HttpResponse proxiedResponse) {
+            try {
+                CachedResponse recordedContent = toCachedResponse(requestToProxy, proxiedResponse, expired);
+                upstream.getCache().put(requestToProxy.getRequestPath(), recordedContent);
+                finish(recordedContent, null);
+            } catch (IOException e) {
+                finish(null, e);
+            } catch (RuntimeException e) {
+                finish(null, e);
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            finish(null, e);
+        }
+
+        @Override
+        public void cancelled() {
+            finish(null, new InterruptedIOException("The call to the 'real' service was cancelled"));
+        }
 
+        private void finish(CachedResponse recordedContent, Exception e) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            if (inFlightKey != null) {
+                inFlightAsynchronously.remove(inFlightKey, recording);
+            }
+            if (e == null) {
+                recording.set(recordedContent);
+            } else {
+                recording.setException(e);
+            }
+            recordingFinished();
+        }
+    }
+
+    /**
+     * Asks the 'real' service for a fresh response to the request on the refresher's pool, unless it is already being asked.
+     */
+    private void refreshInBackground(final Upstream upstream, final RequestToProxy requestToProxy) {
+        final String matchKey = upstream.inFlightKey(requestToProxy);
+        if (refreshing.putIfAbsent(matchKey, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh(upstream, requestToProxy);
+                    } finally {
+                        refreshing.remove(matchKey);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(matchKey);
+            statistics.recordRefreshSkipped();
+        }
+    }
+
+    /**
+     * Records a fresh response to the request, or renews the expired one if the 'real' service says it is still current.
+     * Server errors count as failures and leave the expired response in place.
+     */
+    private void refresh(Upstream upstream, RequestToProxy requestToProxy) {
+        try {
+            CachedResponse expired = revalidatable(upstream, requestToProxy);
+            long started = System.nanoTime();
+            CloseableHttpResponse proxiedResponse = callRealService(upstream, requestToProxy, expired);
+            statistics.recordUpstreamCall(System.nanoTime() - started);
+            try {
+                int statusCode = proxiedResponse.getStatusLine().getStatusCode();
+                if (statusCode >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+                    LOG.warn("Unable to refresh " + requestToProxy + ", the 'real' service returned " + statusCode + ". Still serving the expired response.");
+                    statistics.recordRefreshFailure();
+                    return;
+                }
+                upstream.getCache().put(requestToProxy.getRequestPath(), toCachedResponse(requestToProxy, proxiedResponse, expired));
+                statistics.recordRefresh();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Cache-REFRESHED=" + requestToProxy);
+                }
+            } finally {
+                EntityUtils.consumeQuietly(proxiedResponse.getEntity());
+                proxiedResponse.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to refresh " + requestToProxy + ". Still serving the expired response.", e);
+            statistics.recordRefreshFailure();
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to refresh " + requestToProxy + ". Still serving the expired response.", e);
+            statistics.recordRefreshFailure();
+        }
+    }
+
+    private static void sendError(HttpServletResponse response, int statusCode) {
+        if (response.isCommitted()) {
+            return;
+        }
+        try {
+            response.sendError(statusCode);
+        } catch (IOException e) {
+            LOG.debug("Unable to tell the client the 'real' service failed", e);
+        }
+    }
+
+    /**
+     * Copies the body from the 'real' service to the client and to the recording, flushing to the client whenever the 'real' service pauses.
+     * <p>
+     *     The last byte is recorded but not sent, as sending it would complete the response. The caller sends it once the
+     *     recording has been indexed.
+     * </p>
+     * @return The last byte of the body, or -1 if it was empty.
+     */
+    private static int relay(InputStream upstream, OutputStream client, OutputStream recording) throws IOException {
+        byte[] buffer = new byte[8192];
+        int held = -1;
+        int read;
+        while ((read = upstream.read(buffer)) != -1) {
+            if (read == 0) {
+                continue;
+            }
+            recording.write(buffer, 0, read);
+            if (held != -1) {
+                client.write(held);
+            }
+            client.write(buffer, 0, read - 1);
+            held = buffer[read - 1] & 0xFF;
+            if (upstream.available() == 0) {
+                client.flush();
+            }
+        }
+        return held;
+    }
+
+    /**
+     * Records the response for a request, making sure only one call per match key is made to the 'real' service at a time.
+     * <p>Requests that arrive while a matching call is in flight wait for it and are given the same response.</p>
+     */
+    private void recordOnce(final Upstream upstream, final RequestToProxy requestToProxy, final HttpServletResponse response) throws IOException {
+        FutureTask<CachedResponse> call = new FutureTask<CachedResponse>(new Callable<CachedResponse>() {
+            @Override
+            public CachedResponse call() throws Exception {
+                CachedResponse recordedMeanwhile = upstream.getCache().get(requestToProxy);
+                if (recordedMeanwhile != null) {
+                    write(recordedMeanwhile, requestToProxy, response);
+                    return recordedMeanwhile;
+                }
+                return record(upstream, requestToProxy, response);
+            }
+        });
+        String matchKey = upstream.inFlightKey(requestToProxy);
+        FutureTask<CachedResponse> inFlightCall = inFlight.putIfAbsent(matchKey, call);
+        if (inFlightCall == null) {
+            try {
+                call.run();
+            } finally {
+                inFlight.remove(matchKey, call);
+            }
+            resultOf(call);
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Cache-COALESCED=" + requestToProxy.toString());
+        }
+        statistics.recordCoalescedRequest();
+        response.addHeader("x-http-replaying-proxy-coalesced", "true");
+        write(resultOf(inFlightCall), requestToProxy, response);
+    }
+
+    private static CachedResponse resultOf(Future<CachedResponse> call) throws IOException {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the 'real' service");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @param expired The expired recording to ask the 'real' service to revalidate, or null to ask for a fresh response.
+     */
+    private CloseableHttpResponse callRealService(Upstream upstream, RequestToProxy requestToProxy, CachedResponse expired) throws IOException {
+        return httpClient.execute(upstreamRequest(upstream, requestToProxy, expired));
+    }
+
+    /**
+     * Builds the call to the 'real' service. The client's own conditional headers are dropped, as the proxy needs the
+     * whole response to record, and replaced with the expired recording's validators when revalidating.
+     * <p>
+     *     The client's Accept-Encoding is replaced with gzip if it accepts gzip, and identity if not. A recording is
+     *     replayed to every client whatever it accepts, and gzip is the only encoding the proxy can decode for those that
+     *     don't take it.
+     * </p>
+     */
+    private static HttpRequestBase upstreamRequest(Upstream upstream, RequestToProxy requestToProxy, CachedResponse expired) {
         HttpRequestBase httpRequest = null;
+        String url = upstream.getUrlToProxyTo() + requestToProxy.getRequestPath();
 
         switch (requestToProxy.getHttpMethod()) {
             case GET:
-                httpRequest = new HttpGet(configuration.getUrlToProxyTo() + requestToProxy.getRequestPath());
+                httpRequest = new HttpGet(url);
                 break;
             case POST:
-                httpRequest = new HttpPost(configuration.getUrlToProxyTo() + requestToProxy.getRequestPath());
+                httpRequest = new HttpPost(url);
                 ((HttpPost)httpRequest).setEntity(requestToProxy.getBody());
                 break;
             case PUT:
-                httpRequest = new HttpPut(configuration.getUrlToProxyTo() + requestToProxy.getRequestPath());
+                httpRequest = new HttpPut(url);
                 ((HttpPut)httpRequest).setEntity(requestToProxy.getBody());
                 break;
             case DELETE:
-                httpRequest = new HttpDelete(configuration.getUrlToProxyTo() + requestToProxy.getRequestPath());
+                httpRequest = new HttpDelete(url);
                 break;
             case OPTIONS:
-                httpRequest = new HttpOptions(configuration.getUrlToProxyTo() + requestToProxy.getRequestPath());
+                httpRequest = new HttpOptions(url);
                 break;
             default:
                 throw new RuntimeException("Http Method="+ requestToProxy.getHttpMethod() + " is currently unsupported. Please raise a ticket.");
         }
 
-        httpRequest.setHeaders(requestToProxy.getHeaders());
-
-        return httpclient.execute(httpRequest);
+        for (Header header : requestToProxy.getHeaders()) {
+            if (!"If-None-Match".equalsIgnoreCase(header.getName()) && !"If-Modified-Since".equalsIgnoreCase(header.getName())
+                    && !"Accept-Encoding".equalsIgnoreCase(header.getName())) {
+                httpRequest.addHeader(header);
+            }
+        }
+        httpRequest.addHeader("Accept-Encoding", requestToProxy.acceptsGzip() ? CachedResponse.GZIP : "identity");
+        if (expired != null && expired.getETag() != null) {
+            httpRequest.addHeader("If-None-Match", expired.getETag());
+        }
+        if (expired != null && expired.getLastModified() != null) {
+            httpRequest.addHeader("If-Modified-Since", expired.getLastModified());
+        }
+        return httpRequest;
     }
 }
@@ -1,27 +1,37 @@
 package com.github.davidgenn.httpreplayingproxy.proxy;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.server.Request;
 
-import com.google.common.collect.Lists;
-
 /**
  * The request being proxied.
  */
 class RequestToProxy {
 
+    /**
+     * Changes whenever the way match keys are built changes, so that keys saved to disk can be rebuilt.
+     */
+    static final int MATCH_KEY_VERSION = 4;
+
+    private static final HttpEntity EMPTY_BODY = new ByteArrayEntity(new byte[0]);
+
     private final MatchHeaders matchHeaders;
     private final Header[] headers;
     private final String requestPath;
     private final HttpMethod method;
     private final HttpEntity body;
+    private final transient CompiledMatchRules matchRules;
+    private transient String matchKey;
 
     /**
      * Create a new RequestToProxy.
@@ -32,37 +42,75 @@ class RequestToProxy {
      * @param matchHeaders How headers should be treated when looking for a match.
      */
     public RequestToProxy(Header[] headers, String requestPath, HttpMethod httpMethod, HttpEntity body, MatchHeaders matchHeaders) {
+        this(headers, requestPath, httpMethod, body, matchHeaders, CompiledMatchRules.NONE);
+    }
+
+    /**
+     * Create a new RequestToProxy that is matched by rules.
+     * @param headers The headers on the request.
+     * @param requestPath The request path.
+     * @param httpMethod The HTTP method.
+     * @param body The request body - for POSTs and PUTs.
+     * @param matchHeaders How headers should be treated when looking for a match.
+     * @param matchRules What else is ignored, or put into a standard form, when looking for a match.
+     */
+    RequestToProxy(Header[] headers, String requestPath, HttpMethod httpMethod, HttpEntity body, MatchHeaders matchHeaders,
+                   CompiledMatchRules matchRules) {
         this.headers = headers;
         this.body = body;
         this.method = httpMethod;
         this.requestPath = requestPath;
         this.matchHeaders = matchHeaders;
+        this.matchRules = matchRules;
     }
 
     /**
-     * Builds a RequestToProxy from an HTTP request.
+     * @param matchRules The rules to match the request by.
+     * @return A copy of this request that is matched by the rules.
+     */
+    RequestToProxy withMatchRules(CompiledMatchRules matchRules) {
+        return new RequestToProxy(headers, requestPath, method, body, matchHeaders, matchRules);
+    }
+
+    /**
+     * Builds a RequestToProxy from an HTTP request, working out its match key in the same pass.
      * @param baseRequest The request.
      * @return The built RequestToProxy.
      * @throws IOException
      */
     public static RequestToProxy from(Request baseRequest, MatchHeaders matchHeaders) throws IOException {
-        Set<Header> headers = new HashSet<Header>();
-        Enumeration<String> headerNames = baseRequest.getHeaderNames();
-        while(headerNames.hasMoreElements()) {
-            String headerName = headerNames.nextElement();
-            if ("Content-Length".equals(headerName)) {
-                continue;
-            }
-            if ("Host".equals(headerName)) {
+        return from(baseRequest, matchHeaders, CompiledMatchRules.NONE);
+    }
+
+    /**
+     * Builds a RequestToProxy from an HTTP request, working out its match key by the rules in the same pass.
+     * @param baseRequest The request.
+     * @param matchHeaders How headers should be treated when looking for a match.
+     * @param matchRules What else is ignored, or put into a standard form, when looking for a match.
+     * @return The built RequestToProxy.
+     * @throws IOException
+     */
+    static RequestToProxy from(Request baseRequest, MatchHeaders matchHeaders, CompiledMatchRules matchRules) throws IOException {
+        MatchKeyBuilder matchKeyBuilder = MatchKeyBuilder.forThisThread();
+        HttpFields fields = baseRequest.getHttpFields();
+        Header[] headers = new Header[fields.size()];
+        int headerCount = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            HttpField field = fields.getField(i);
+            if (field.getHeader() == HttpHeader.CONTENT_LENGTH || field.getHeader() == HttpHeader.HOST) {
                 continue;
             }
-
-            BasicHeader header = new BasicHeader(headerName, baseRequest.getHeader(headerName));
-            headers.add(header);
+            headers[headerCount++] = new BasicHeader(field.getName(), field.getValue());
+            matchKeyBuilder.header(field.getName(), field.getValue(), matchHeaders, matchRules);
         }
+        if (headerCount < headers.length) {
+            headers = Arrays.copyOf(headers, headerCount);
+        }
+
+        matchKeyBuilder.readBody(baseRequest.getInputStream(), baseRequest.getContentLengthLong());
+        HttpEntity body = matchKeyBuilder.hasBody() ? new ByteArrayEntity(matchKeyBuilder.copyOfBody()) : EMPTY_BODY;
+        matchKeyBuilder.normaliseBody(matchRules, baseRequest.getContentType());
 
-        ByteArrayEntity body = new ByteArrayEntity(IOUtils.toByteArray(baseRequest.getInputStream()));
-        baseRequest.extractParameters();
         String queryString = baseRequest.getQueryString();
         String path = null;
         if (queryString == null) {
@@ -70,12 +118,16 @@ class RequestToProxy {
         } else {
             path = baseRequest.getPathInfo() + "?"+ queryString;
         }
-        return new RequestToProxy(
-                headers.toArray(new Header[0]),
+        HttpMethod method = HttpMethod.valueOf(baseRequest.getMethod());
+        RequestToProxy requestToProxy = new RequestToProxy(
+                headers,
                 path,
-                HttpMethod.valueOf(baseRequest.getMethod()),
+                method,
                 body,
-                matchHeaders);
+                matchHeaders,
+                matchRules);
+        requestToProxy.matchKey = matchKeyBuilder.build(method, path, matchRules);
+        return requestToProxy;
     }
 
     /**
@@ -106,44 +158,88 @@ class RequestToProxy {
         return body;
     }
 
-    public String toString() {
-        StringBuffer sb = new StringBuffer();
-        sb.append("requestPath=" + requestPath);
-        sb.append("method=" + method);
-        sb.append("headers=" + headersToString());
-        try {
-            sb.append("body=" + new String(IOUtils.toByteArray(body.getContent())));
-        } catch (IllegalStateException e) {
-            throw new RuntimeException(e);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * @param name The name of a header, in any case.
+     * @return The value of the first header with the name, or null if the request doesn't have one.
+     */
+    public String getFirstHeader(String name) {
+        for (Header header : headers) {
+            if (name.equalsIgnoreCase(header.getName())) {
+                return header.getValue();
+            }
         }
-        return sb.toString();
+        return null;
     }
 
-    private String headersToString() {
-        if (MatchHeaders.IGNORE_HEADERS == matchHeaders) {
-            return "";
+    /**
+     * @return Whether the client said it can take a gzipped response, in an Accept-Encoding header.
+     */
+    public boolean acceptsGzip() {
+        for (Header header : headers) {
+            if (!"Accept-Encoding".equalsIgnoreCase(header.getName())) {
+                continue;
+            }
+            for (String coding : header.getValue().split(",")) {
+                String[] parameters = coding.split(";");
+                String name = parameters[0].trim();
+                if ((CachedResponse.GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name) || "*".equals(name))
+                        && !refused(parameters)) {
+                    return true;
+                }
+            }
         }
-        StringBuffer sb = new StringBuffer();
-        List<Header> headerList = Lists.newArrayList(headers);
-        Collections.sort(headerList, new Comparator<Header>() {
+        return false;
+    }
 
-            @Override
-            public int compare(Header o1, Header o2) {
-                return o1.getName().compareTo(o2.getName());
+    /**
+     * @return Whether the parameters of a coding in an Accept-Encoding header give it a quality of zero.
+     */
+    private static boolean refused(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2)) == 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
             }
+        }
+        return false;
+    }
 
-        });
+    /**
+     * The canonical key used to look this request up in the cache. Built once and then reused.
+     * <p>Two requests with the same key are considered to be the same request, taking the MatchHeaders into account.</p>
+     * @return The match key.
+     */
+    public String getMatchKey() {
+        if (matchKey == null) {
+            matchKey = buildMatchKey();
+        }
+        return matchKey;
+    }
+
+    public String toString() {
+        return getMatchKey();
+    }
 
-        for (Header header: headerList) {
-            if (MatchHeaders.MATCH_NAME_AND_VALUE == matchHeaders) {
-                sb.append(header.getName() + "=" + header.getValue());
-            } else {
-                sb.append(header.getName());
+    private String buildMatchKey() {
+        // Read back from a fixture, the request has no rules until it is given some.
+        CompiledMatchRules rules = matchRules == null ? CompiledMatchRules.NONE : matchRules;
+        MatchKeyBuilder matchKeyBuilder = MatchKeyBuilder.forThisThread();
+        for (Header header : headers) {
+            matchKeyBuilder.header(header.getName(), header.getValue(), matchHeaders, rules);
+        }
+        if (body != null) {
+            try {
+                matchKeyBuilder.body(EntityUtils.toByteArray(body));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
+            matchKeyBuilder.normaliseBody(rules, getFirstHeader("Content-Type"));
         }
-        return sb.toString();
+        return matchKeyBuilder.build(method, requestPath, rules);
     }
 
     @Override
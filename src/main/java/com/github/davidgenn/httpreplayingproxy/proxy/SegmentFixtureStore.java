@@ -0,0 +1,367 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Appends every recorded response to a single segment file and keeps the offset of each record in an index file.
+ * <p>
+ *     Each record is a header (a marker, the length of the metadata and the length of the body) followed by the response,
+ *     without its body, as JSON and then the raw body. At startup the segment is memory mapped and the body of each
+ *     response is a slice of that mapping, so it is never copied onto the heap. Records written after that are read
+ *     from the file until they add up to as much as is mapped, and only then is the segment mapped again, so it is mapped
+ *     a number of times that grows with the log of its size rather than once for each record written and then read.
+ * </p>
+ * <p>
+ *     The segment is written before the index. If the two disagree after a crash, records beyond the end of the index
+ *     are recovered and a partly written record is dropped.
+ * </p>
+ * <p>
+ *     Compaction copies the records being kept into a new segment, which is renamed over the old one. Each location
+ *     names the generation of the segment as well as the offset, and the previous generation stays mapped, so responses
+ *     looked up just before a compaction can still be read just after it.
+ * </p>
+ */
+class SegmentFixtureStore implements FixtureStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentFixtureStore.class);
+
+    static final String SEGMENT_FILE = "fixtures.segment";
+    static final String INDEX_FILE = "fixtures.segment.index";
+    private static final String COMPACTING_EXTENSION = ".compacting";
+
+    private static final int RECORD_MARKER = 0x48525031; // "HRP1"
+    private static final int RECORD_HEADER_LENGTH = 16; // marker, metadata length, body length
+    private static final int INDEX_ENTRY_LENGTH = 8; // record offset
+    private static final Charset METADATA_CHARSET = Charset.forName("UTF-8");
+    private static final long MIN_REMAP_LENGTH = 1024 * 1024;
+
+    private final Gson gson;
+    private final File directory;
+    private FileChannel segment;
+    private FileChannel index;
+    private MappedByteBuffer mapped;
+    private int generation;
+    private MappedByteBuffer previousGeneration;
+    private int mappings;
+
+    /**
+     * Opens, or creates, the segment and index files in a directory.
+     * @param directory The directory holding the segment and index files.
+     * @throws IOException
+     */
+    public SegmentFixtureStore(File directory) throws IOException {
+        this(directory, CompiledMatchRules.NONE);
+    }
+
+    /**
+     * Opens, or creates, the segment and index files in a directory, for responses matched by rules.
+     * @param directory The directory holding the segment and index files.
+     * @param matchRules The rules the requests read back are matched by.
+     * @throws IOException
+     */
+    SegmentFixtureStore(File directory, CompiledMatchRules matchRules) throws IOException {
+        this.directory = directory;
+        this.gson = JsonFixtureStore.createGson(matchRules);
+        open();
+        recover();
+    }
+
+    private void open() throws IOException {
+        segment = new RandomAccessFile(new File(directory, SEGMENT_FILE), "rw").getChannel();
+        index = new RandomAccessFile(new File(directory, INDEX_FILE), "rw").getChannel();
+    }
+
+    @Override
+    public synchronized List<CacheEntry> readAll(Collection<String> unreadable) throws IOException {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>();
+        for (long offset : readOffsets()) {
+            try {
+                entries.add(new CacheEntry(location(offset), readRecord(mapping(), offset)));
+            } catch (RuntimeException e) {
+                LOG.warn("Skipping unreadable cached response at offset " + offset + " of " + SEGMENT_FILE, e);
+                unreadable.add(location(offset));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized List<CacheEntry> summarise(Collection<String> unreadable) throws IOException {
+        // The bodies are only ever mapped, never read onto the heap, so a summary costs the same as reading everything.
+        List<CacheEntry> entries = new ArrayList<CacheEntry>();
+        for (CacheEntry entry : readAll(unreadable)) {
+            entries.add(new CacheEntry(entry.getLocation(), entry.getMatchKey(), entry.getTimeCreatedUtcMillis()));
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized CachedResponse read(String location) throws IOException {
+        int separator = location.indexOf(':');
+        int locationGeneration = Integer.parseInt(location.substring(0, separator));
+        long offset = Long.parseLong(location.substring(separator + 1));
+        if (locationGeneration == generation) {
+            return readRecord(offset);
+        }
+        if (locationGeneration == generation - 1 && previousGeneration != null) {
+            return readRecord(previousGeneration, offset);
+        }
+        throw new IOException("The cached response at " + location + " has been compacted away");
+    }
+
+    /**
+     * @return The location of the record at the offset in the current generation of the segment.
+     */
+    private String location(long offset) {
+        return generation + ":" + offset;
+    }
+
+    /**
+     * @return A mapping of the whole segment, remapped if records have been written since it was last mapped.
+     */
+    private MappedByteBuffer mapping() throws IOException {
+        long segmentLength = segment.size();
+        if (mapped == null || mapped.capacity() < segmentLength) {
+            if (segmentLength > Integer.MAX_VALUE) {
+                throw new IOException("Segment file is larger than 2GB and can't be mapped. Convert it to JSON files with FixtureConverter.");
+            }
+            mapped = segment.map(FileChannel.MapMode.READ_ONLY, 0, segmentLength);
+            mappings++;
+        }
+        return mapped;
+    }
+
+    /**
+     * @return How many times the current generation of the segment has been mapped.
+     */
+    int getMappings() {
+        return mappings;
+    }
+
+    /**
+     * Reads the record at the offset in the current generation, from the mapping if it is mapped. Otherwise the whole
+     * segment is mapped again if what isn't mapped is as long as what is, or MIN_REMAP_LENGTH if that's more, and if not
+     * the record is read from the file onto the heap.
+     */
+    private CachedResponse readRecord(long offset) throws IOException {
+        if (mapped != null && offset < mapped.capacity()) {
+            return readRecord(mapped, offset);
+        }
+        if (mapped == null || segment.size() - mapped.capacity() >= Math.max(mapped.capacity(), MIN_REMAP_LENGTH)) {
+            return readRecord(mapping(), offset);
+        }
+        long end = endOfRecord(offset);
+        if (end < 0) {
+            throw new IOException("There is no complete cached response at offset " + offset + " of " + SEGMENT_FILE);
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) (end - offset));
+        while (record.hasRemaining() && segment.read(record, offset + record.position()) != -1) {
+            // keep reading
+        }
+        record.flip();
+        return readRecord(record, 0);
+    }
+
+    private CachedResponse readRecord(ByteBuffer mapped, long offset) {
+        ByteBuffer record = mapped.duplicate();
+        record.position((int) offset + 4);
+        int metadataLength = record.getInt();
+        int bodyLength = (int) record.getLong();
+        byte[] metadata = new byte[metadataLength];
+        record.get(metadata);
+
+        ByteBuffer body = mapped.duplicate();
+        body.position(record.position());
+        body.limit(record.position() + bodyLength);
+
+        CachedResponse response = gson.fromJson(new String(metadata, METADATA_CHARSET), CachedResponse.class);
+        return response.withBody(body.slice());
+    }
+
+    @Override
+    public synchronized String write(String filename, CachedResponse response) throws IOException {
+        byte[] metadata = gson.toJson(response.withBody(ByteBuffer.allocate(0))).getBytes(METADATA_CHARSET);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        header.putInt(RECORD_MARKER).putInt(metadata.length).putLong(response.getBodyLength()).flip();
+
+        long offset = segment.size();
+        if (offset + RECORD_HEADER_LENGTH + metadata.length + response.getBodyLength() > Integer.MAX_VALUE) {
+            throw new IOException("Segment file would grow beyond 2GB and couldn't be mapped. Convert it to JSON files with FixtureConverter.");
+        }
+        segment.position(offset);
+        writeFully(segment, header, ByteBuffer.wrap(metadata), response.getBodyBuffer());
+
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_LENGTH);
+        entry.putLong(offset).flip();
+        index.position(index.size());
+        writeFully(index, entry);
+        return location(offset);
+    }
+
+    @Override
+    public synchronized void sync(Collection<String> locations) throws IOException {
+        segment.force(false);
+        index.force(false);
+    }
+
+    /**
+     * Copies every record that isn't obsolete into a new segment and renames it over the old one.
+     * <p>
+     *     The index is emptied before the rename and rewritten after it. If the compaction is interrupted by a crash, the
+     *     index is rebuilt from whichever segment is in place when the store is next opened.
+     * </p>
+     */
+    @Override
+    public synchronized long compact(Set<String> obsolete, Map<String, String> moved) throws IOException {
+        long sizeBefore = segment.size() + index.size();
+        File compactedSegmentFile = new File(directory, SEGMENT_FILE + COMPACTING_EXTENSION);
+        File compactedIndexFile = new File(directory, INDEX_FILE + COMPACTING_EXTENSION);
+        List<Long> offsets = new ArrayList<Long>();
+        Map<String, String> relocated = new HashMap<String, String>();
+        FileChannel compactedSegment = new RandomAccessFile(compactedSegmentFile, "rw").getChannel();
+        try {
+            compactedSegment.truncate(0);
+            for (long offset : readOffsets()) {
+                if (obsolete.contains(location(offset))) {
+                    continue;
+                }
+                long length = endOfRecord(offset) - offset;
+                if (length <= 0) {
+                    throw new IOException("Unable to compact " + SEGMENT_FILE + ", the record at offset " + offset + " is incomplete");
+                }
+                long compactedOffset = compactedSegment.size();
+                long copied = 0;
+                while (copied < length) {
+                    copied += segment.transferTo(offset + copied, length - copied, compactedSegment.position(compactedOffset + copied));
+                }
+                offsets.add(compactedOffset);
+                relocated.put(location(offset), (generation + 1) + ":" + compactedOffset);
+            }
+            compactedSegment.force(false);
+        } finally {
+            compactedSegment.close();
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(offsets.size() * INDEX_ENTRY_LENGTH);
+        for (long offset : offsets) {
+            entries.putLong(offset);
+        }
+        entries.flip();
+        FileChannel compactedIndex = new RandomAccessFile(compactedIndexFile, "rw").getChannel();
+        try {
+            compactedIndex.truncate(0);
+            writeFully(compactedIndex, entries);
+            compactedIndex.force(false);
+        } finally {
+            compactedIndex.close();
+        }
+
+        MappedByteBuffer previous = mapping();
+        segment.close();
+        index.close();
+        File indexFile = new File(directory, INDEX_FILE);
+        new RandomAccessFile(indexFile, "rw").getChannel().truncate(0).close();
+        Files.move(compactedSegmentFile.toPath(), new File(directory, SEGMENT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(compactedIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+        mapped = null;
+        mappings = 0;
+        previousGeneration = previous;
+        generation++;
+        moved.putAll(relocated);
+        return sizeBefore - segment.size() - index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segment.close();
+        index.close();
+    }
+
+    private List<Long> readOffsets() throws IOException {
+        long entries = index.size() / INDEX_ENTRY_LENGTH;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (entries * INDEX_ENTRY_LENGTH));
+        index.position(0);
+        while (buffer.hasRemaining() && index.read(buffer) != -1) {
+            // keep reading
+        }
+        buffer.flip();
+        List<Long> offsets = new ArrayList<Long>();
+        while (buffer.remaining() >= INDEX_ENTRY_LENGTH) {
+            offsets.add(buffer.getLong());
+        }
+        return offsets;
+    }
+
+    /**
+     * Brings the index back in line with the segment after a crash.
+     */
+    private void recover() throws IOException {
+        index.truncate(index.size() - index.size() % INDEX_ENTRY_LENGTH);
+        List<Long> offsets = readOffsets();
+        long end = 0;
+        if (!offsets.isEmpty()) {
+            end = endOfRecord(offsets.get(offsets.size() - 1));
+            if (end < 0) {
+                // The last indexed record is incomplete. Drop it.
+                end = offsets.get(offsets.size() - 1);
+                index.truncate(index.size() - INDEX_ENTRY_LENGTH);
+            }
+        }
+        long recordEnd;
+        while ((recordEnd = endOfRecord(end)) > 0) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_LENGTH);
+            entry.putLong(end).flip();
+            index.position(index.size());
+            writeFully(index, entry);
+            end = recordEnd;
+        }
+        segment.truncate(end);
+    }
+
+    /**
+     * @return Where the record starting at the offset ends, or -1 if there isn't a complete record there.
+     */
+    private long endOfRecord(long offset) throws IOException {
+        if (offset + RECORD_HEADER_LENGTH > segment.size()) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        segment.position(offset);
+        while (header.hasRemaining() && segment.read(header) != -1) {
+            // keep reading
+        }
+        header.flip();
+        if (header.getInt() != RECORD_MARKER) {
+            return -1;
+        }
+        long end = offset + RECORD_HEADER_LENGTH + header.getInt() + header.getLong();
+        return end <= segment.size() ? end : -1;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer... buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
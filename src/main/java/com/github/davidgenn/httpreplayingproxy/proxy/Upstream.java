@@ -0,0 +1,123 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A 'real' service the ReplayingProxyHandler passes requests on to, with the cache its responses are recorded in.
+ * <p>
+ *     There is one for each ProxyRoute, and one for the url the HttpReplayingProxyConfiguration proxies to itself, which
+ *     takes the requests no route matches.
+ * </p>
+ */
+class Upstream implements Closeable {
+
+    static final String DEFAULT_NAME = "default";
+
+    private final String name;
+    private final ProxyRoute route;
+    private final String urlToProxyTo;
+    private final MatchHeaders matchHeaders;
+    private final CompiledMatchRules matchRules;
+    private final FileBasedCache cache;
+
+    /**
+     * Creates the Upstream for the url the configuration proxies to itself, caching in the root directory for the cache.
+     * @param configuration The configuration.
+     * @param statistics Where to record what the cache has done.
+     * @throws IOException
+     */
+    Upstream(HttpReplayingProxyConfiguration configuration, ProxyStatistics statistics) throws IOException {
+        this.name = DEFAULT_NAME;
+        this.route = null;
+        this.urlToProxyTo = configuration.getUrlToProxyTo();
+        this.matchHeaders = configuration.getMatchHeaders();
+        this.matchRules = configuration.getMatchRules().compile();
+        this.cache = new FileBasedCache(configuration.getCacheRootDirectory(), configuration.getTimeToLiveSeconds(), matchRules,
+                configuration, statistics);
+    }
+
+    /**
+     * Creates the Upstream for a route, caching in the route's own directory.
+     * @param route The route.
+     * @param configuration The configuration the route was added to.
+     * @param statistics Where to record what the cache has done.
+     * @throws IOException
+     */
+    Upstream(ProxyRoute route, HttpReplayingProxyConfiguration configuration, ProxyStatistics statistics) throws IOException {
+        if (route.getUrlToProxyTo() == null) {
+            throw new IllegalArgumentException("Route " + route.getName() + " has no url to proxy to");
+        }
+        this.name = route.getName();
+        this.route = route;
+        this.urlToProxyTo = route.getUrlToProxyTo();
+        this.matchHeaders = route.getMatchHeaders(configuration);
+        this.matchRules = route.getMatchRules(configuration).compile();
+        this.cache = new FileBasedCache(FileBasedCache.routeDirectory(configuration.getCacheRootDirectory(), name),
+                route.getTimeToLiveSeconds(configuration), matchRules, configuration, statistics);
+    }
+
+    /**
+     * @param host The host the request was sent to, without the port.
+     * @param path The path of the request, without the query.
+     * @return Whether the request should be passed on to this Upstream.
+     */
+    boolean matches(String host, String path) {
+        return route == null || route.matches(host, path);
+    }
+
+    /**
+     * @param requestToProxy A request to this Upstream.
+     * @return A key for the request that is unique across every Upstream, for tracking calls in flight.
+     */
+    String inFlightKey(RequestToProxy requestToProxy) {
+        return name + ' ' + requestToProxy.getMatchKey();
+    }
+
+    /**
+     * @return The name of the route, or "default".
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return The route, or null for the url the configuration proxies to itself.
+     */
+    ProxyRoute getRoute() {
+        return route;
+    }
+
+    /**
+     * @return The 'real' url to proxy calls to.
+     */
+    String getUrlToProxyTo() {
+        return urlToProxyTo;
+    }
+
+    /**
+     * @return How headers should be treated when looking for a previously cached response.
+     */
+    MatchHeaders getMatchHeaders() {
+        return matchHeaders;
+    }
+
+    /**
+     * @return What else is ignored, or put into a standard form, when looking for a previously cached response.
+     */
+    CompiledMatchRules getMatchRules() {
+        return matchRules;
+    }
+
+    /**
+     * @return The cache this Upstream's responses are recorded in.
+     */
+    FileBasedCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.close();
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.NonBlockingThread;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs each request on a new virtual thread, but keeps Jetty's selector loops on platform threads of their own.
+ * <p>
+ *     A selector loop spends its life blocked in Selector.select(), which would tie up one of the few carrier threads
+ *     every virtual thread is scheduled on. Jetty hands each loop to the pool wrapped in a NonBlockingThread, which is how
+ *     they are told apart. The connector is expected to have no acceptors, so that connections are accepted by the
+ *     selector loops as well.
+ * </p>
+ */
+class VirtualThreadPool extends ExecutorThreadPool {
+
+    private final ExecutorService selectors = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "replaying-proxy-selector-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param virtualThreads An executor that starts a new virtual thread for every task.
+     */
+    VirtualThreadPool(ExecutorService virtualThreads) {
+        super(virtualThreads);
+    }
+
+    @Override
+    public void execute(Runnable job) {
+        if (job instanceof NonBlockingThread) {
+            selectors.execute(job);
+        } else {
+            super.execute(job);
+        }
+    }
+
+    @Override
+    public boolean dispatch(Runnable job) {
+        try {
+            execute(job);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        selectors.shutdownNow();
+        selectors.awaitTermination(1, TimeUnit.SECONDS);
+    }
+}
@@ -1,6 +1,8 @@
 package com.github.davidgenn.httpreplayingproxy.proxy;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -9,8 +11,12 @@ import org.eclipse.jetty.server.Server;
 import org.junit.*;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.google.common.base.Strings;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.zip.GZIPInputStream;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.fest.assertions.Assertions.*;
@@ -280,6 +286,207 @@ public class AcceptanceTest {
         assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached")).isNull();
     }
 
+    @Test
+    public void test_conditional_get_is_answered_not_modified_and_expired_get_is_revalidated() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/etag"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody("<response>Some content</response>")));
+        stubFor(get(urlEqualTo("/verify/etag"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("ETag", "\"v1\"")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .timeToLiveForCacheInSeconds(1);
+        HttpReplayingProxy proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        CloseableHttpResponse proxiedResponse = httpclient.execute(new HttpGet("http://localhost:8585/verify/etag"));
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("ETag").getValue()).isEqualTo("\"v1\"");
+
+        // When - the client already holds the response
+        HttpGet conditionalGet = new HttpGet("http://localhost:8585/verify/etag");
+        conditionalGet.addHeader("If-None-Match", "\"v1\"");
+        proxiedResponse = httpclient.execute(conditionalGet);
+
+        // Then - it is answered from the cache without a body
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(304);
+        assertThat(proxiedResponse.getEntity()).isNull();
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(proxy.getStatistics().getNotModifiedResponses()).isEqualTo(1);
+
+        // And once the response expires the 'real' service confirms it is unchanged
+        Thread.sleep(1010); // Slightly more than a second
+        proxiedResponse = httpclient.execute(new HttpGet("http://localhost:8585/verify/etag"));
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxy.getStatistics().getRevalidations()).isEqualTo(1);
+        verify(1, getRequestedFor(urlEqualTo("/verify/etag")).withHeader("If-None-Match", equalTo("\"v1\"")));
+    }
+
+    @Test
+    public void test_expired_get_is_replayed_stale_while_refreshed_in_background() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/stale"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Old content</response>")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .timeToLiveForCacheInSeconds(1)
+                        .serveStaleWhileRevalidating(true);
+        HttpReplayingProxy proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/stale");
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Old content</response>");
+
+        // When - the response expires and the 'real' service changes
+        Thread.sleep(1010); // Slightly more than a second
+        stubFor(get(urlEqualTo("/verify/stale"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>New content</response>")));
+        proxiedResponse = httpclient.execute(httpGet);
+
+        // Then - the expired response is replayed at once
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Old content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-stale").getValue()).isEqualTo("true");
+
+        // And the fresh one is replayed once the background refresh has recorded it
+        for (int attempt = 0; attempt < 50 && proxy.getStatistics().getRefreshes() == 0; attempt++) {
+            Thread.sleep(100);
+        }
+        proxiedResponse = httpclient.execute(httpGet);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>New content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-stale")).isNull();
+    }
+
+    @Test
+    public void test_superseded_recording_is_compacted_away() throws Exception {
+        // Given - a response recorded twice because the first recording expired
+        stubFor(get(urlEqualTo("/verify/compacted"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .timeToLiveForCacheInSeconds(1);
+        HttpReplayingProxy proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/compacted");
+        IOUtils.toString(httpclient.execute(httpGet).getEntity().getContent());
+        Thread.sleep(1010); // Slightly more than a second
+        IOUtils.toString(httpclient.execute(httpGet).getEntity().getContent());
+        assertThat(FileUtils.listFiles(new File(rootDirectory()), new String[] {"json"}, false)).hasSize(2);
+
+        // When
+        long bytesReclaimed = proxy.compactFixtures();
+
+        // Then - only the newest recording is left, and it is still replayed
+        assertThat(bytesReclaimed).isGreaterThan(0);
+        assertThat(FileUtils.listFiles(new File(rootDirectory()), new String[] {"json"}, false)).hasSize(1);
+        assertThat(proxy.getStatistics().getFixturesCompacted()).isEqualTo(1);
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+    }
+
+    @Test
+    public void test_compaction_keeps_the_replayed_one_of_two_recordings_made_in_the_same_millisecond() throws Exception {
+        // Given - the same request recorded twice in the same millisecond, and a 'real' service answering differently
+        stubFor(get(urlEqualTo("/verify/tied"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>From the real service</response>")));
+        FileBasedCache recorder = new FileBasedCache(rootDirectory(), Long.MAX_VALUE / 2000);
+        RequestToProxy request = new RequestToProxy(new Header[0], "/verify/tied", HttpMethod.GET, new StringEntity(""), MatchHeaders.IGNORE_HEADERS);
+        long timeCreatedUtcMillis = System.currentTimeMillis();
+        recorder.put(request.getRequestPath(), new CachedResponse(200, request, "<response>First</response>".getBytes("UTF-8"), "text/xml", timeCreatedUtcMillis));
+        recorder.put(request.getRequestPath(), new CachedResponse(200, request, "<response>Second</response>".getBytes("UTF-8"), "text/xml", timeCreatedUtcMillis));
+        recorder.close();
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .treatHeaders(MatchHeaders.IGNORE_HEADERS);
+        HttpReplayingProxy proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/tied");
+        String replayedBody = IOUtils.toString(httpclient.execute(httpGet).getEntity().getContent());
+
+        // When
+        proxy.compactFixtures();
+
+        // Then - the recording left on disk is the one that was being replayed, so the 'real' service is never asked
+        assertThat(FileUtils.listFiles(new File(rootDirectory()), new String[] {"json"}, false)).hasSize(1);
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo(replayedBody);
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        verify(0, getRequestedFor(urlEqualTo("/verify/tied")));
+        httpclient.close();
+    }
+
+    @Test
+    public void test_unreadable_fixture_is_skipped_when_fixtures_are_loaded_in_parallel() throws Exception {
+        // Given - more recordings than one thread reads in a batch, and a broken one among them
+        int recordings = 40;
+        stubFor(get(urlMatching("/verify/parallel/.*"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .loadFixturesInParallel(true);
+        server = new HttpReplayingProxy(configuration).start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        for (int i = 0; i < recordings; i++) {
+            IOUtils.toString(httpclient.execute(new HttpGet("http://localhost:8585/verify/parallel/" + i)).getEntity().getContent());
+        }
+        server.stop();
+        FileUtils.writeStringToFile(new File(rootDirectory(), "broken.json"), "{\"requestToProxy\": ");
+
+        // When
+        HttpReplayingProxy proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+
+        // Then - on new connections, as the stopped proxy may have left the old ones open
+        httpclient.close();
+        httpclient = HttpClients.createDefault();
+        assertThat(proxy.getStatistics().getUnreadableFixtures()).isEqualTo(1);
+        for (int i = 0; i < recordings; i++) {
+            CloseableHttpResponse proxiedResponse = httpclient.execute(new HttpGet("http://localhost:8585/verify/parallel/" + i));
+            assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+            assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        }
+        verify(recordings, getRequestedFor(urlMatching("/verify/parallel/.*")));
+    }
+
     @Test
     public void test_put_is_proxied_with_headers_and_cached() throws Exception {
         // Given
@@ -421,8 +628,633 @@ public class AcceptanceTest {
 
     }
 
+    @Test
+    public void test_binary_get_is_streamed_and_replayed_byte_for_byte() throws Exception {
+        // Given
+        // Every byte value, served from a file as WireMock needs JAXB, gone from Java 11, to send it a byte[] body.
+        byte[] body = FileUtils.readFileToByteArray(new File("src/test/resources/__files/binary.bin"));
+        stubFor(get(urlEqualTo("/verify/binary"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/octet-stream")
+                        .withBodyFile("binary.bin")));
+
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .streamResponses(true);
+        server = new HttpReplayingProxy(configuration).start();
+
+        // When
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/binary");
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+
+        // Then
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(IOUtils.toByteArray(proxiedResponse.getEntity().getContent())).isEqualTo(body);
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached")).isNull();
+        proxiedResponse = httpclient.execute(httpGet);
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(IOUtils.toByteArray(proxiedResponse.getEntity().getContent())).isEqualTo(body);
+        assertThat(proxiedResponse.getFirstHeader("Content-Type").getValue()).isEqualTo("application/octet-stream");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+    }
+
+    @Test
+    public void test_compressed_get_is_replayed_gzipped_only_to_clients_that_accept_gzip() throws Exception {
+        // Given
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("<item>").append(i).append("</item>");
+        }
+        stubFor(get(urlEqualTo("/verify/compressed"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/xml")
+                        .withBody(body.toString())));
+
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .compressFixtures(true);
+        server = new HttpReplayingProxy(configuration).start();
+        CloseableHttpClient httpclient = HttpClients.custom().disableContentCompression().build();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/compressed");
+        assertThat(IOUtils.toString(httpclient.execute(httpGet).getEntity().getContent())).isEqualTo(body.toString());
+
+        // When
+        HttpGet gzipGet = new HttpGet("http://localhost:8585/verify/compressed");
+        gzipGet.addHeader("Accept-Encoding", "gzip");
+        CloseableHttpResponse gzippedResponse = httpclient.execute(gzipGet);
+        CloseableHttpResponse plainResponse = httpclient.execute(httpGet);
+
+        // Then
+        assertThat(gzippedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(gzippedResponse.getFirstHeader("Content-Encoding").getValue()).isEqualTo("gzip");
+        assertThat(IOUtils.toString(new GZIPInputStream(gzippedResponse.getEntity().getContent()))).isEqualTo(body.toString());
+        assertThat(plainResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(plainResponse.getFirstHeader("Content-Encoding")).isNull();
+        assertThat(IOUtils.toString(plainResponse.getEntity().getContent())).isEqualTo(body.toString());
+    }
+
+    @Test
+    public void test_gzipped_upstream_response_is_recorded_encoded() throws Exception {
+        assertGzippedUpstreamResponseIsRecordedEncoded(false);
+    }
+
+    @Test
+    public void test_gzipped_upstream_response_is_streamed_and_recorded_encoded() throws Exception {
+        assertGzippedUpstreamResponseIsRecordedEncoded(true);
+    }
+
+    private void assertGzippedUpstreamResponseIsRecordedEncoded(boolean streamResponses) throws Exception {
+        // Given - a 'real' service that gzips its response
+        String body = "<response>Some gzipped content</response>";
+        stubFor(get(urlEqualTo("/verify/gzipped"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/xml")
+                        .withHeader("Content-Encoding", "gzip")
+                        .withBodyFile("gzipped.xml.gz")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .streamResponses(streamResponses);
+        server = new HttpReplayingProxy(configuration).start();
+        CloseableHttpClient httpclient = HttpClients.custom().disableContentCompression().build();
+        HttpGet gzipGet = new HttpGet("http://localhost:8585/verify/gzipped");
+        gzipGet.addHeader("Accept-Encoding", "gzip");
+        HttpGet plainGet = new HttpGet("http://localhost:8585/verify/gzipped");
+
+        // When
+        CloseableHttpResponse recordedResponse = httpclient.execute(gzipGet);
+        String recordedBody = IOUtils.toString(new GZIPInputStream(recordedResponse.getEntity().getContent()));
+        recordedResponse.close();
+        CloseableHttpResponse gzippedResponse = httpclient.execute(gzipGet);
+        String gzippedBody = IOUtils.toString(new GZIPInputStream(gzippedResponse.getEntity().getContent()));
+        gzippedResponse.close();
+        CloseableHttpResponse plainResponse = httpclient.execute(plainGet);
+
+        // Then - the gzipped bytes were passed on and recorded as they were, and are only decoded for clients that need it
+        assertThat(recordedResponse.getFirstHeader("Content-Encoding").getValue()).isEqualTo("gzip");
+        assertThat(recordedBody).isEqualTo(body);
+        assertThat(gzippedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(gzippedResponse.getFirstHeader("Content-Encoding").getValue()).isEqualTo("gzip");
+        assertThat(gzippedBody).isEqualTo(body);
+        assertThat(plainResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(plainResponse.getFirstHeader("Content-Encoding")).isNull();
+        assertThat(IOUtils.toString(plainResponse.getEntity().getContent())).isEqualTo(body);
+        verify(1, getRequestedFor(urlEqualTo("/verify/gzipped")).withHeader("Accept-Encoding", equalTo("gzip")));
+    }
+
+    @Test
+    public void test_only_encodings_the_proxy_can_decode_are_asked_for() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/brotli"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+        startHttpReplayingProxyServer(MatchHeaders.IGNORE_HEADERS);
+        CloseableHttpClient httpclient = HttpClients.custom().disableContentCompression().build();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/brotli");
+        httpGet.addHeader("Accept-Encoding", "br, deflate");
+
+        // When
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+
+        // Then - the 'real' service is asked not to encode a response later replayed to clients that may not accept it
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("Content-Encoding")).isNull();
+        verify(1, getRequestedFor(urlEqualTo("/verify/brotli")).withHeader("Accept-Encoding", equalTo("identity")));
+    }
+
+    @Test
+    public void test_hits_on_a_keep_alive_connection_replay_the_same_frame() throws Exception {
+        // Given
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("<item>").append(i).append("</item>");
+        }
+        stubFor(get(urlEqualTo("/verify/keepalive"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/xml")
+                        .withBody(body.toString())));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .compressFixtures(true);
+        HttpReplayingProxy proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+        // One connection, so every request after the first is sent on a connection already used for a hit.
+        CloseableHttpClient httpclient = HttpClients.custom().disableContentCompression().setMaxConnTotal(1).setMaxConnPerRoute(1).build();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/keepalive");
+        HttpGet gzipGet = new HttpGet("http://localhost:8585/verify/keepalive");
+        gzipGet.addHeader("Accept-Encoding", "gzip");
+        IOUtils.toString(httpclient.execute(httpGet).getEntity().getContent());
+
+        // When
+        byte[] firstPlainBody = null;
+        byte[] firstGzippedBody = null;
+        for (int i = 0; i < 3; i++) {
+            for (HttpGet request : new HttpGet[] {httpGet, gzipGet}) {
+                CloseableHttpResponse proxiedResponse = httpclient.execute(request);
+                byte[] replayed = IOUtils.toByteArray(proxiedResponse.getEntity().getContent());
+
+                // Then - each hit has one Content-Length, worked out in advance, and exactly the bytes of the first
+                assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+                assertThat(proxiedResponse.getHeaders("Content-Length")).hasSize(1);
+                assertThat(proxiedResponse.getFirstHeader("Content-Length").getValue()).isEqualTo(String.valueOf(replayed.length));
+                assertThat(proxiedResponse.getFirstHeader("Connection")).isNull();
+                if (request == httpGet) {
+                    assertThat(new String(replayed, "UTF-8")).isEqualTo(body.toString());
+                    firstPlainBody = firstPlainBody == null ? replayed : firstPlainBody;
+                    assertThat(replayed).isEqualTo(firstPlainBody);
+                } else {
+                    assertThat(IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(replayed)))).isEqualTo(body.toString());
+                    firstGzippedBody = firstGzippedBody == null ? replayed : firstGzippedBody;
+                    assertThat(replayed).isEqualTo(firstGzippedBody);
+                }
+                proxiedResponse.close();
+            }
+        }
+
+        // Then - the body was only gunzipped for the first client that didn't accept gzip
+        assertThat(proxy.getStatistics().getDecodedBodies()).isEqualTo(1);
+        verify(1, getRequestedFor(urlEqualTo("/verify/keepalive")));
+    }
+
+    @Test
+    public void test_get_is_replayed_from_mapped_segment_after_restart() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/this?query=value"))
+                .withHeader("My-Header", equalTo("header-value"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/xml")
+                        .withBody("<response>Some content</response>")));
+
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .withFixtureStorage(FixtureStorage.MAPPED_SEGMENT);
+        server = new HttpReplayingProxy(configuration).start();
+
+        // When
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/this?query=value");
+        httpGet.addHeader("My-Header", "header-value");
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+
+        // Then
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached")).isNull();
+
+        // Restart - the response should now come from the segment
+        server.stop();
+        server = new HttpReplayingProxy(configuration).start();
+        proxiedResponse = httpclient.execute(httpGet);
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("Content-Type").getValue()).isEqualTo("text/xml");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+    }
+
+    @Test
+    public void test_get_in_flight_when_the_proxy_stops_is_still_recorded() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/slow"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withBody("<response>Some content</response>")));
+
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .withFixtureStorage(FixtureStorage.MAPPED_SEGMENT);
+        server = new HttpReplayingProxy(configuration).start();
+        final CloseableHttpClient inFlightClient = HttpClients.createDefault();
+        Thread inFlight = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inFlightClient.execute(new HttpGet("http://localhost:8585/verify/slow"));
+                } catch (IOException e) {
+                    // The proxy stopped before it could answer
+                }
+            }
+        });
+        inFlight.start();
+        // The 'real' service has the request, and takes a second to answer it
+        while (findAll(getRequestedFor(urlEqualTo("/verify/slow"))).isEmpty()) {
+            Thread.sleep(10);
+        }
+
+        // When
+        server.stop();
+        server = new HttpReplayingProxy(configuration).start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        CloseableHttpResponse proxiedResponse = httpclient.execute(new HttpGet("http://localhost:8585/verify/slow"));
+
+        // Then
+        inFlight.join();
+        inFlightClient.close();
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        verify(1, getRequestedFor(urlEqualTo("/verify/slow")));
+        httpclient.close();
+    }
+
+    @Test
+    public void test_get_migrated_to_sharded_layout_is_replayed_after_restart() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/this?query=value"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+        String flatDirectory = rootDirectory() + "/flat";
+        FileBasedCache.reset(flatDirectory);
+        HttpReplayingProxyConfiguration flatConfiguration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(flatDirectory);
+        server = new HttpReplayingProxy(flatConfiguration).start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/this?query=value");
+        assertThat(IOUtils.toString(httpclient.execute(httpGet).getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        server.stop();
+
+        // When
+        FixtureConverter.convert(FixtureStorage.JSON_FILES, flatDirectory, FixtureStorage.SHARDED_JSON_FILES, rootDirectory());
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .withFixtureStorage(FixtureStorage.SHARDED_JSON_FILES);
+        server = new HttpReplayingProxy(configuration).start();
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+
+        // Then
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        FileBasedCache.reset(flatDirectory);
+    }
+
+    @Test
+    public void test_fixture_added_while_running_is_replayed_without_restart() throws Exception {
+        // Given
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .treatHeaders(MatchHeaders.IGNORE_HEADERS)
+                        .watchFixtures(true)
+                        .watchDebounceMillis(100);
+        HttpReplayingProxy proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+
+        // When - another process records a fixture into the same directory
+        FileBasedCache otherProcess = new FileBasedCache(rootDirectory(), Long.MAX_VALUE / 2000);
+        RequestToProxy request = new RequestToProxy(new Header[0], "/verify/watched", HttpMethod.GET, new StringEntity(""), MatchHeaders.IGNORE_HEADERS);
+        otherProcess.put(request.getRequestPath(), new CachedResponse(200, request, "<response>Added on disk</response>".getBytes("UTF-8"), "text/xml"));
+        otherProcess.close();
+        for (int attempt = 0; attempt < 50 && proxy.getStatistics().getFixturesReloaded() == 0; attempt++) {
+            Thread.sleep(100);
+        }
+
+        // Then - replayed without ever asking the 'real' service, which has no stub for it
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        CloseableHttpResponse proxiedResponse = httpclient.execute(new HttpGet("http://localhost:8585/verify/watched"));
+        assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Added on disk</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+    }
+
+    @Test
+    public void test_get_is_replayed_lazily_after_restart() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/this?query=value"))
+                .withHeader("My-Header", equalTo("header-value"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .loadFixturesLazily(true)
+                        .maxResidentResponses(1);
+        server = new HttpReplayingProxy(configuration).start();
+
+        // When
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/this?query=value");
+        httpGet.addHeader("My-Header", "header-value");
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+
+        // Then
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached")).isNull();
+
+        // Restart twice - once to build the summary and once to use it
+        for (int restart = 0; restart < 2; restart++) {
+            server.stop();
+            server = new HttpReplayingProxy(configuration).start();
+            proxiedResponse = httpclient.execute(httpGet);
+            assertThat(proxiedResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+            assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+            assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        }
+    }
+
+    @Test
+    public void test_get_written_behind_is_replayed_at_once_and_after_restart() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/this?query=value"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .withFixtureWrites(FixtureWrites.WRITE_BEHIND)
+                        .writeBehindFlushIntervalMillis(60000);
+        server = new HttpReplayingProxy(configuration).start();
+
+        // When
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/this?query=value");
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+
+        // Then - replayed from memory long before the writer gets to it
+        proxiedResponse = httpclient.execute(httpGet);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+
+        // Restart - stopping writes out whatever is still waiting
+        server.stop();
+        server = new HttpReplayingProxy(configuration).start();
+        proxiedResponse = httpclient.execute(httpGet);
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+    }
+
+    @Test
+    public void test_responses_evicted_from_memory_are_replayed_from_disk() throws Exception {
+        // Given
+        String body = Strings.repeat("x", 4096);
+        for (int i = 0; i < 2; i++) {
+            stubFor(get(urlEqualTo("/evicted/" + i))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withBody(body)));
+        }
+
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .maxResidentBytes(1024);
+        HttpReplayingProxy proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        for (int i = 0; i < 2; i++) {
+            httpclient.execute(new HttpGet("http://localhost:8585/evicted/" + i)).close();
+        }
+
+        // When
+        for (int i = 0; i < 2; i++) {
+            CloseableHttpResponse proxiedResponse = httpclient.execute(new HttpGet("http://localhost:8585/evicted/" + i));
+
+            // Then
+            assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo(body);
+            assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+            proxiedResponse.close();
+        }
+        assertThat(proxy.getStatistics().getCacheHits()).isEqualTo(2);
+        assertThat(proxy.getStatistics().getCacheMisses()).isEqualTo(2);
+        assertThat(proxy.getStatistics().getResidentEvictions()).isGreaterThanOrEqualTo(2);
+        assertThat(proxy.getStatistics().getResponsesReadFromDisk()).isEqualTo(2);
+    }
+
+    @Test
+    public void test_header_names_are_matched_ignoring_case() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/verify/this"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+        startHttpReplayingProxyServer();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpGet httpGet = new HttpGet("http://localhost:8585/verify/this");
+        httpGet.addHeader("My-Header", "header-value");
+        httpclient.execute(httpGet).close();
+
+        // When
+        httpGet = new HttpGet("http://localhost:8585/verify/this");
+        httpGet.addHeader("my-header", "header-value");
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+
+        // Then
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        verify(1, getRequestedFor(urlEqualTo("/verify/this")));
+    }
+
+    @Test
+    public void test_volatile_query_parameters_and_json_fields_are_ignored_by_match_rules() throws Exception {
+        // Given
+        stubFor(post(urlMatching("/verify/rules.*"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .withMatchRules(new MatchRules()
+                                .ignoreQueryParameters("ts")
+                                .ignoreQueryParameterOrder(true)
+                                .ignoreJsonBodyFields("requestId"));
+        server = new HttpReplayingProxy(configuration).start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        HttpPost httpPost = new HttpPost("http://localhost:8585/verify/rules?a=1&b=2&ts=100");
+        httpPost.setEntity(new StringEntity("{\"requestId\":\"one\",\"key\":\"value\"}", "UTF-8"));
+        httpPost.setHeader("Content-Type", "application/json");
+        httpclient.execute(httpPost).close();
+
+        // When - only the timestamp, the order of the parameters and the request id differ
+        httpPost = new HttpPost("http://localhost:8585/verify/rules?ts=200&b=2&a=1");
+        httpPost.setEntity(new StringEntity("{\"key\":\"value\",\"requestId\":\"two\"}", "UTF-8"));
+        httpPost.setHeader("Content-Type", "application/json");
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpPost);
+
+        // Then
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>Some content</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        verify(1, postRequestedFor(urlMatching("/verify/rules.*")));
+    }
+
+    @Test
+    public void test_paths_matching_the_same_template_share_a_recording() throws Exception {
+        // Given
+        stubFor(get(urlMatching("/users/.*"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>A user</response>")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .withMatchRules(new MatchRules().matchPathTemplates("/users/{id}", "/users/me"));
+        server = new HttpReplayingProxy(configuration).start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        httpclient.execute(new HttpGet("http://localhost:8585/users/123")).close();
+
+        // When
+        CloseableHttpResponse templatedResponse = httpclient.execute(new HttpGet("http://localhost:8585/users/456"));
+        CloseableHttpResponse literalResponse = httpclient.execute(new HttpGet("http://localhost:8585/users/me"));
+
+        // Then - the more specific literal template has a recording of its own
+        assertThat(IOUtils.toString(templatedResponse.getEntity().getContent())).isEqualTo("<response>A user</response>");
+        assertThat(templatedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(literalResponse.getFirstHeader("x-http-replaying-proxy-cached")).isNull();
+        verify(0, getRequestedFor(urlEqualTo("/users/456")));
+        verify(1, getRequestedFor(urlEqualTo("/users/me")));
+    }
+
+    @Test
+    public void test_requests_are_routed_by_path_prefix_and_cached_per_route() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/users/1"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>A user</response>")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .portToHostOn(8585)
+                        .withRootDirectoryForCache(rootDirectory())
+                        .withRoute(new ProxyRoute("users")
+                                .forPathPrefix("/users")
+                                .urlToProxyTo("http://localhost:8080")
+                                .treatHeaders(MatchHeaders.IGNORE_HEADERS));
+        server = new HttpReplayingProxy(configuration).start();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        httpclient.execute(new HttpGet("http://localhost:8585/users/1")).close();
+
+        // When
+        HttpGet httpGet = new HttpGet("http://localhost:8585/users/1");
+        httpGet.addHeader("My-Header", "header-value");
+        CloseableHttpResponse proxiedResponse = httpclient.execute(httpGet);
+        CloseableHttpResponse unroutedResponse = httpclient.execute(new HttpGet("http://localhost:8585/usersettings"));
+
+        // Then - the route's own header matching applies and its response is cached in its own directory
+        assertThat(IOUtils.toString(proxiedResponse.getEntity().getContent())).isEqualTo("<response>A user</response>");
+        assertThat(proxiedResponse.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+        assertThat(new File(rootDirectory(), "routes/users").list()).hasSize(1);
+        assertThat(unroutedResponse.getStatusLine().getStatusCode()).isEqualTo(404);
+        verify(1, getRequestedFor(urlEqualTo("/users/1")));
+        verify(0, getRequestedFor(urlEqualTo("/usersettings")));
+    }
+
+    @Test
+    public void test_metrics_are_served_from_the_admin_path() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/orders/1"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+        startHttpReplayingProxyServer();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        for (int i = 0; i < 2; i++) {
+            httpclient.execute(new HttpGet("http://localhost:8585/orders/1")).close();
+        }
+
+        // When
+        CloseableHttpResponse metricsResponse = httpclient.execute(new HttpGet("http://localhost:8585" + ProxyStatistics.METRICS_PATH));
+
+        // Then
+        assertThat(metricsResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+        assertThat(metricsResponse.getFirstHeader("Content-Type").getValue()).startsWith("text/plain; version=0.0.4");
+        String metrics = IOUtils.toString(metricsResponse.getEntity().getContent());
+        assertThat(metrics).contains("httpreplayingproxy_requests_total{route=\"GET /orders\",result=\"hit\"} 1\n");
+        assertThat(metrics).contains("httpreplayingproxy_requests_total{route=\"GET /orders\",result=\"miss\"} 1\n");
+        assertThat(metrics).contains("httpreplayingproxy_replay_duration_seconds_count 1\n");
+        assertThat(metrics).contains("httpreplayingproxy_upstream_duration_seconds_count 1\n");
+        assertThat(metrics).contains("httpreplayingproxy_cached_responses 1\n");
+        verify(0, getRequestedFor(urlEqualTo(ProxyStatistics.METRICS_PATH)));
+    }
+
     @After
     public void tearDown() throws Exception {
+        System.clearProperty(FileBasedCache.RESET_CACHE_AT_STARTUP);
         server.stop();
     }
 }
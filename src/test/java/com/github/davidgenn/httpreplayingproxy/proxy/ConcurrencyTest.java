@@ -0,0 +1,265 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Hammers a single HttpReplayingProxy from many threads at once.
+ */
+public class ConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int REQUESTS_PER_THREAD = 200;
+    private static final int PATHS = 50;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(8080);
+    private HttpReplayingProxy proxy;
+    private Server server;
+    private CloseableHttpClient httpclient;
+    private String rootDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        rootDirectory = System.getProperty("cache.root.directory");
+        if (rootDirectory == null) {
+            throw new RuntimeException("cache.root.directory System Property not set. Please set it and try again!");
+        }
+        FileBasedCache.reset(rootDirectory);
+
+        for (int i = 0; i < PATHS; i++) {
+            stubFor(get(urlEqualTo("/concurrent/" + i))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withBody("<response>" + i + "</response>")));
+        }
+
+        httpclient = HttpClients.custom().setMaxConnTotal(THREADS).setMaxConnPerRoute(THREADS).build();
+    }
+
+    private void startHttpReplayingProxyServer(boolean coalesceConcurrentMisses) throws Exception {
+        startHttpReplayingProxyServer(coalesceConcurrentMisses, false);
+    }
+
+    private void startHttpReplayingProxyServer(boolean coalesceConcurrentMisses, boolean handleMissesAsynchronously) throws Exception {
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .treatHeaders(MatchHeaders.IGNORE_HEADERS)
+                        .coalesceConcurrentMisses(coalesceConcurrentMisses)
+                        .handleMissesAsynchronously(handleMissesAsynchronously)
+                        .withRootDirectoryForCache(rootDirectory);
+        proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+    }
+
+    @Test
+    public void test_concurrent_hits_and_misses_are_all_answered_correctly() throws Exception {
+        startHttpReplayingProxyServer(false);
+
+        // Given - half of the paths are already cached, the rest will be misses
+        for (int i = 0; i < PATHS / 2; i++) {
+            assertThat(call(i)).isEqualTo("<response>" + i + "</response>");
+        }
+
+        // When
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int answered = 0;
+                    for (int r = 0; r < REQUESTS_PER_THREAD; r++) {
+                        int path = (offset + r) % PATHS;
+                        assertThat(ConcurrencyTest.this.call(path)).isEqualTo("<response>" + path + "</response>");
+                        answered++;
+                    }
+                    return answered;
+                }
+            }));
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+
+        // Then
+        for (Future<Integer> result : results) {
+            assertThat(result.get()).isEqualTo(REQUESTS_PER_THREAD);
+        }
+        for (int i = 0; i < PATHS; i++) {
+            CloseableHttpResponse response = httpclient.execute(new HttpGet("http://localhost:8585/concurrent/" + i));
+            assertThat(IOUtils.toString(response.getEntity().getContent())).isEqualTo("<response>" + i + "</response>");
+            assertThat(response.getFirstHeader("x-http-replaying-proxy-cached").getValue()).isEqualTo("true");
+            response.close();
+        }
+    }
+
+    @Test
+    public void test_concurrent_misses_for_the_same_request_are_coalesced() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/concurrent/slow"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withBody("<response>slow</response>")));
+        startHttpReplayingProxyServer(true);
+
+        // When
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    CloseableHttpResponse response = httpclient.execute(new HttpGet("http://localhost:8585/concurrent/slow"));
+                    try {
+                        return IOUtils.toString(response.getEntity().getContent());
+                    } finally {
+                        response.close();
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+
+        // Then
+        for (Future<String> result : results) {
+            assertThat(result.get()).isEqualTo("<response>slow</response>");
+        }
+        verify(1, getRequestedFor(urlEqualTo("/concurrent/slow")));
+        assertThat(proxy.getStatistics().getCoalescedRequests()).isEqualTo(THREADS - 1);
+    }
+
+    @Test
+    public void test_concurrent_misses_are_recorded_asynchronously_and_coalesced() throws Exception {
+        // Given
+        stubFor(get(urlMatching("/concurrent/slow/.*"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withBody("<response>slow</response>")));
+        startHttpReplayingProxyServer(true, true);
+
+        // When
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int path = t % 4;
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    CloseableHttpResponse response = httpclient.execute(new HttpGet("http://localhost:8585/concurrent/slow/" + path));
+                    try {
+                        return IOUtils.toString(response.getEntity().getContent());
+                    } finally {
+                        response.close();
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+
+        // Then
+        for (Future<String> result : results) {
+            assertThat(result.get()).isEqualTo("<response>slow</response>");
+        }
+        for (int path = 0; path < 4; path++) {
+            verify(1, getRequestedFor(urlEqualTo("/concurrent/slow/" + path)));
+        }
+        assertThat(proxy.getStatistics().getCoalescedRequests()).isEqualTo(THREADS - 4);
+        assertThat(call(0)).isEqualTo("<response>0</response>");
+    }
+
+    @Test
+    public void test_asynchronous_misses_whose_call_fails_are_all_answered() throws Exception {
+        // Given
+        stubFor(get(urlEqualTo("/concurrent/timeout"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withBody("<response>timeout</response>")));
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .treatHeaders(MatchHeaders.IGNORE_HEADERS)
+                        .coalesceConcurrentMisses(true)
+                        .handleMissesAsynchronously(true)
+                        .upstreamSocketTimeoutMillis(200)
+                        .withRootDirectoryForCache(rootDirectory);
+        proxy = new HttpReplayingProxy(configuration);
+        server = proxy.start();
+
+        // When
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    CloseableHttpResponse response = httpclient.execute(new HttpGet("http://localhost:8585/concurrent/timeout"));
+                    try {
+                        return response.getStatusLine().getStatusCode();
+                    } finally {
+                        response.close();
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+
+        // Then
+        for (Future<Integer> result : results) {
+            assertThat(result.get()).isEqualTo(502);
+        }
+        stubFor(get(urlEqualTo("/concurrent/timeout"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>timeout</response>")));
+        CloseableHttpResponse response = httpclient.execute(new HttpGet("http://localhost:8585/concurrent/timeout"));
+        assertThat(IOUtils.toString(response.getEntity().getContent())).isEqualTo("<response>timeout</response>");
+        response.close();
+    }
+
+    private String call(int path) throws Exception {
+        CloseableHttpResponse response = httpclient.execute(new HttpGet("http://localhost:8585/concurrent/" + path));
+        try {
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+            return IOUtils.toString(response.getEntity().getContent());
+        } finally {
+            response.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpclient.close();
+        server.stop();
+    }
+}
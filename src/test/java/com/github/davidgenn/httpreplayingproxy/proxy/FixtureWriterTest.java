@@ -0,0 +1,143 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.apache.http.Header;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Writes recordings through a FixtureWriter into a store that only counts them.
+ */
+public class FixtureWriterTest {
+
+    private static final int THREADS = 8;
+    private static final int WRITES_PER_THREAD = 500;
+
+    private final Set<String> stored = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Test
+    public void test_every_write_accepted_before_close_is_written() throws Exception {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            // Given
+            stored.clear();
+            final AtomicInteger indexed = new AtomicInteger();
+            final FixtureWriter writer = new FixtureWriter(countingStore(), new ProxyStatistics(), new FixtureWriter.Listener() {
+                @Override
+                public void written(CacheEntry pending, String location) {
+                    indexed.incrementAndGet();
+                }
+            }, 1, 4);
+            final AtomicInteger accepted = new AtomicInteger();
+            final CountDownLatch started = new CountDownLatch(THREADS);
+            Thread[] threads = new Thread[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                            try {
+                                writer.write("/" + thread + "/" + i, entry("/" + thread + "/" + i));
+                                accepted.incrementAndGet();
+                            } catch (IOException e) {
+                                return; // closed
+                            }
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+
+            // When
+            started.await();
+            writer.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // Then
+            assertThat(stored.size()).isEqualTo(accepted.get());
+            assertThat(indexed.get()).isEqualTo(accepted.get());
+        }
+    }
+
+    @Test
+    public void test_a_failing_listener_does_not_stop_the_writer() throws Exception {
+        // Given
+        final AtomicInteger indexed = new AtomicInteger();
+        FixtureWriter writer = new FixtureWriter(countingStore(), new ProxyStatistics(), new FixtureWriter.Listener() {
+            @Override
+            public void written(CacheEntry pending, String location) {
+                if (location.equals("/first")) {
+                    throw new IllegalStateException("Listener failed");
+                }
+                indexed.incrementAndGet();
+            }
+        }, 60000, 4);
+
+        // When
+        writer.write("/first", entry("/first"));
+        writer.flush();
+        writer.write("/second", entry("/second"));
+        writer.flush();
+        writer.close();
+
+        // Then
+        assertThat(stored).containsOnly("/first", "/second");
+        assertThat(indexed.get()).isEqualTo(1);
+    }
+
+    private static CacheEntry entry(String path) {
+        RequestToProxy request = new RequestToProxy(new Header[0], path, HttpMethod.GET, null, MatchHeaders.IGNORE_HEADERS);
+        return new CacheEntry(null, new CachedResponse(200, request, new byte[0], "text/plain"));
+    }
+
+    private FixtureStore countingStore() {
+        return new FixtureStore() {
+            @Override
+            public List<CacheEntry> readAll(Collection<String> unreadable) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public List<CacheEntry> summarise(Collection<String> unreadable) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CachedResponse read(String location) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String write(String filename, CachedResponse response) {
+                stored.add(filename);
+                return filename;
+            }
+
+            @Override
+            public void sync(Collection<String> locations) {
+            }
+
+            @Override
+            public long compact(Set<String> obsolete, Map<String, String> moved) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.*;
+import static org.junit.Assert.fail;
+
+/**
+ * Matches request paths against a PathTemplateTrie directly.
+ */
+public class PathTemplateTrieTest {
+
+    @Test
+    public void test_the_most_specific_template_wins() throws Exception {
+        // Given
+        PathTemplateTrie trie = trie("/users/**", "/users/{id}", "/users/me", "/users/{id}/orders/*");
+
+        // Then
+        assertThat(trie.match("/users/me")).isEqualTo("/users/me");
+        assertThat(trie.match("/users/42")).isEqualTo("/users/{id}");
+        assertThat(trie.match("/users/42/orders/7")).isEqualTo("/users/{id}/orders/*");
+        assertThat(trie.match("/users/42/basket")).isEqualTo("/users/**");
+        assertThat(trie.match("/users")).isEqualTo("/users/**");
+        assertThat(trie.match("/accounts/42")).isNull();
+    }
+
+    @Test
+    public void test_a_literal_that_leads_nowhere_falls_back_to_a_parameter() throws Exception {
+        // Given
+        PathTemplateTrie trie = trie("/users/me/settings", "/users/{id}/orders");
+
+        // Then
+        assertThat(trie.match("/users/me/orders")).isEqualTo("/users/{id}/orders");
+        assertThat(trie.match("/users/me/settings")).isEqualTo("/users/me/settings");
+        assertThat(trie.match("/users/me/basket")).isNull();
+    }
+
+    @Test
+    public void test_a_parameter_does_not_match_an_empty_segment() throws Exception {
+        // Given
+        PathTemplateTrie trie = trie("/users/{id}/orders");
+
+        // Then
+        assertThat(trie.match("/users//orders")).isNull();
+        assertThat(trie.match("/users/42/orders")).isEqualTo("/users/{id}/orders");
+    }
+
+    @Test
+    public void test_a_parameter_and_a_wildcard_in_the_same_place_are_ambiguous() throws Exception {
+        // Given
+        PathTemplateTrie trie = trie("/users/{id}");
+
+        // Then
+        try {
+            trie.add("/users/*");
+            fail("Expected /users/{id} and /users/* to be rejected as matching the same paths");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("/users/{id}").contains("/users/*");
+        }
+        try {
+            trie.add("/users/{userId}");
+            fail("Expected /users/{id} and /users/{userId} to be rejected as matching the same paths");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("match the same paths");
+        }
+        trie.add("/users/{id}");
+        assertThat(trie.match("/users/42")).isEqualTo("/users/{id}");
+    }
+
+    @Test
+    public void test_templates_that_are_not_paths_are_rejected() throws Exception {
+        // Given
+        PathTemplateTrie trie = new PathTemplateTrie();
+
+        // Then
+        try {
+            trie.add("users/{id}");
+            fail("Expected a template without a leading '/' to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("must start with '/'");
+        }
+        try {
+            trie.add("/users/**/orders");
+            fail("Expected ** other than at the end to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("last segment");
+        }
+        assertThat(trie.isEmpty()).isTrue();
+    }
+
+    private static PathTemplateTrie trie(String... templates) {
+        PathTemplateTrie trie = new PathTemplateTrie();
+        for (String template : templates) {
+            trie.add(template);
+        }
+        return trie;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Writes recordings to a SegmentFixtureStore in a temporary directory and reads them back.
+ */
+public class SegmentFixtureStoreTest {
+
+    private static final int RECORDINGS = 600;
+    private static final int BODY_LENGTH = 4096;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("segment-fixture-store").toFile();
+    }
+
+    @Test
+    public void test_recordings_read_back_as_they_are_written_are_not_each_mapped_again() throws Exception {
+        // Given
+        SegmentFixtureStore store = new SegmentFixtureStore(directory);
+        List<String> locations = new ArrayList<String>();
+
+        // When - each recording is read back straight after it is written, with the first one
+        for (int i = 0; i < RECORDINGS; i++) {
+            locations.add(store.write("/" + i, response(i)));
+            assertThat(bodyOf(store.read(locations.get(i)))).isEqualTo(body(i));
+            assertThat(bodyOf(store.read(locations.get(0)))).isEqualTo(body(0));
+        }
+
+        // Then - every recording still reads back, and the segment was mapped a handful of times, not once per recording
+        for (int i = 0; i < RECORDINGS; i++) {
+            assertThat(bodyOf(store.read(locations.get(i)))).isEqualTo(body(i));
+        }
+        assertThat(store.getMappings()).isLessThanOrEqualTo(4);
+        store.close();
+
+        SegmentFixtureStore reopened = new SegmentFixtureStore(directory);
+        List<CacheEntry> entries = reopened.readAll(new ArrayList<String>());
+        assertThat(entries).hasSize(RECORDINGS);
+        assertThat(bodyOf(reopened.read(entries.get(RECORDINGS - 1).getLocation()))).isEqualTo(body(RECORDINGS - 1));
+        reopened.close();
+    }
+
+    private static CachedResponse response(int i) {
+        RequestToProxy request = new RequestToProxy(new Header[0], "/" + i, HttpMethod.GET, null, MatchHeaders.IGNORE_HEADERS);
+        return new CachedResponse(200, request, body(i), "application/octet-stream");
+    }
+
+    private static byte[] body(int i) {
+        byte[] body = new byte[BODY_LENGTH];
+        Arrays.fill(body, (byte) i);
+        return body;
+    }
+
+    private static byte[] bodyOf(CachedResponse response) {
+        ByteBuffer body = response.getBodyBuffer().duplicate();
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return bytes;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(directory);
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.davidgenn.httpreplayingproxy.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Sends requests through a proxy handling them on virtual threads when more clients are waiting on a slow 'real' service
+ * than the default thread pool has threads. Only runs on Java 21 or later, and fails rather than being skipped on older
+ * versions when the virtual.threads.required System Property is set, as it is in the Java 21 CI job. SlowMissBenchmark,
+ * in the benchmarks module, compares the throughput with the default thread pool.
+ */
+public class VirtualThreadLoadTest {
+
+    private static final int CLIENTS = 400;
+    private static final int REQUESTS_PER_CLIENT = 10;
+    private static final int UPSTREAM_DELAY_MILLIS = 100;
+
+    private Server upstream;
+    private String rootDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        if (Boolean.getBoolean("virtual.threads.required") && !supportsVirtualThreads()) {
+            throw new RuntimeException("virtual.threads.required is set, but virtual threads need Java 21 or later!");
+        }
+        Assume.assumeTrue(supportsVirtualThreads());
+        rootDirectory = System.getProperty("cache.root.directory");
+        if (rootDirectory == null) {
+            throw new RuntimeException("cache.root.directory System Property not set. Please set it and try again!");
+        }
+
+        // WireMock's own thread pool would be the bottleneck, so stand in for the 'real' service with a Jetty server that never runs out of threads.
+        upstream = new Server(new ExecutorThreadPool(Executors.newCachedThreadPool()));
+        ServerConnector connector = new ServerConnector(upstream);
+        connector.setPort(8080);
+        upstream.addConnector(connector);
+        upstream.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                try {
+                    Thread.sleep(UPSTREAM_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setStatus(200);
+                response.getOutputStream().write(("<response>" + target + "</response>").getBytes("UTF-8"));
+                baseRequest.setHandled(true);
+            }
+        });
+        upstream.start();
+    }
+
+    @Test
+    public void test_every_slow_miss_is_answered_on_virtual_threads() throws Exception {
+        FileBasedCache.reset(rootDirectory);
+        HttpReplayingProxyConfiguration configuration =
+                new HttpReplayingProxyConfiguration()
+                        .urlToProxyTo("http://localhost:8080")
+                        .portToHostOn(8585)
+                        .maxUpstreamConnections(CLIENTS)
+                        .maxUpstreamConnectionsPerRoute(CLIENTS)
+                        .useVirtualThreads(true)
+                        .withRootDirectoryForCache(rootDirectory);
+        Server server = new HttpReplayingProxy(configuration).start();
+        final CloseableHttpClient httpclient = HttpClients.custom().setMaxConnTotal(CLIENTS).setMaxConnPerRoute(CLIENTS).build();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            final CountDownLatch go = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int c = 0; c < CLIENTS; c++) {
+                final int client = c;
+                results.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        go.await();
+                        for (int r = 0; r < REQUESTS_PER_CLIENT; r++) {
+                            String path = "/load/" + client + "/" + r;
+                            CloseableHttpResponse response = httpclient.execute(new HttpGet("http://localhost:8585" + path));
+                            try {
+                                assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+                                assertThat(IOUtils.toString(response.getEntity().getContent())).isEqualTo("<response>" + path + "</response>");
+                            } finally {
+                                response.close();
+                            }
+                        }
+                        return REQUESTS_PER_CLIENT;
+                    }
+                }));
+            }
+
+            go.countDown();
+            int answered = 0;
+            for (Future<Integer> result : results) {
+                answered += result.get(5, TimeUnit.MINUTES);
+            }
+            assertThat(answered).isEqualTo(CLIENTS * REQUESTS_PER_CLIENT);
+            // Only platform threads are listed, so this is the selector loops kept off the virtual threads.
+            assertThat(selectorThreads()).isGreaterThan(0);
+        } finally {
+            clients.shutdownNow();
+            httpclient.close();
+            server.stop();
+        }
+    }
+
+    private static int selectorThreads() {
+        int selectors = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("replaying-proxy-selector-")) {
+                selectors++;
+            }
+        }
+        return selectors;
+    }
+
+    private static boolean supportsVirtualThreads() {
+        try {
+            HttpReplayingProxy.virtualThreadPool();
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (upstream != null) {
+            upstream.stop();
+        }
+    }
+}